@@ -0,0 +1,326 @@
+package io.github.furstenheim;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.jsoup.parser.Parser;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Converts the HTML documents of an EPUB or ZIP archive in parallel.
+ * <p>
+ * Entries are read through the zip {@link FileSystem}, nothing is extracted to disk. EPUB
+ * archives, recognized by their {@code META-INF/container.xml}, are converted in spine order.
+ * For other archives every {@code .html}, {@code .htm} and {@code .xhtml} entry is converted,
+ * ordered by path. Each document is parsed whole and only its body is converted, so titles and
+ * styles in the head do not end up in the markdown. XHTML documents, the EPUB chapters of type
+ * {@code application/xhtml+xml} and the {@code .xhtml} entries of other archives, are parsed as
+ * XML, so that self-closing elements like {@code <div/>} are closed where they are.
+ * <p>
+ * The limits of the converter's options apply to each document on its own, parsing included.
+ */
+public class ArchiveConverter {
+    private static final String CONTAINER = "/META-INF/container.xml";
+    private static final String XHTML_MEDIA_TYPE = "application/xhtml+xml";
+    private static final List<String> HTML_MEDIA_TYPES = List.of(XHTML_MEDIA_TYPE, "text/html");
+    private static final String XHTML_EXTENSION = ".xhtml";
+    private static final List<String> HTML_EXTENSIONS = List.of(".html", ".htm", XHTML_EXTENSION);
+    // No charset takes more bytes to encode a character
+    private static final int MAX_BYTES_PER_CHAR = 4;
+
+    private final CopyDown copyDown;
+    private final Executor executor;
+    // Documents converted at the same time or waiting for the consumer. Bounds the markdown held
+    // in memory
+    private final int window;
+
+    /**
+     * Converts on the common {@link ForkJoinPool}
+     */
+    public ArchiveConverter(CopyDown copyDown) {
+        this(copyDown, ForkJoinPool.commonPool(), ForkJoinPool.getCommonPoolParallelism());
+    }
+
+    /**
+     * @param copyDown converter applied to every document
+     * @param executor executor on which documents are read and converted
+     * @param parallelism number of documents converted at the same time. Converted documents
+     * wait for the consumer within the same number, so at most this many are in flight
+     */
+    public ArchiveConverter(CopyDown copyDown, Executor executor, int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1");
+        }
+        this.copyDown = Objects.requireNonNull(copyDown);
+        this.executor = Objects.requireNonNull(executor);
+        this.window = parallelism;
+    }
+
+    /**
+     * Converts every document of the archive
+     *
+     * @param archive EPUB or ZIP file
+     * @return the converted documents in reading order
+     * @throws IOException if the archive or one of its documents cannot be read
+     */
+    public List<ConvertedEntry> convert(Path archive) throws IOException {
+        List<ConvertedEntry> entries = new ArrayList<>();
+        convert(archive, entries::add);
+        return entries;
+    }
+
+    /**
+     * Converts every document of the archive and joins them into a single markdown document
+     *
+     * @param archive EPUB or ZIP file
+     * @return markdown of all documents in reading order, separated by blank lines
+     * @throws IOException if the archive or one of its documents cannot be read
+     */
+    public String convertToDocument(Path archive) throws IOException {
+        StringBuilder document = new StringBuilder();
+        convert(archive, entry -> {
+            if (entry.getMarkdown().isEmpty()) {
+                return;
+            }
+            if (document.length() > 0) {
+                document.append("\n\n");
+            }
+            document.append(entry.getMarkdown());
+        });
+        return document.toString();
+    }
+
+    /**
+     * Converts every document of the archive and hands each one to the consumer as soon as it
+     * and all documents before it are converted. The consumer is called on the calling thread.
+     *
+     * @param archive EPUB or ZIP file
+     * @param consumer receives the converted documents in reading order
+     * @throws IOException if the archive or one of its documents cannot be read
+     * @throws ConversionAbortedException if a document exceeds the limits of the options
+     */
+    public void convert(Path archive, Consumer<ConvertedEntry> consumer) throws IOException {
+        try (FileSystem zip = FileSystems.newFileSystem(archive)) {
+            List<ArchiveDocument> documents = documentsOf(zip);
+            Deque<CompletableFuture<ConvertedEntry>> pending = new ArrayDeque<>();
+            CancellationToken cancellation = new CancellationToken();
+            int next = 0;
+            try {
+                while (next < documents.size() || !pending.isEmpty()) {
+                    while (next < documents.size() && pending.size() < window) {
+                        ArchiveDocument document = documents.get(next++);
+                        pending.add(CompletableFuture.supplyAsync(
+                                () -> cancellation.isCancelled() ? null : convertEntry(document, cancellation), executor));
+                    }
+                    consumer.accept(await(pending.poll()));
+                }
+            } finally {
+                // When the consumer or a conversion failed, documents that have not started are
+                // skipped and the ones being converted stop at their next node. All of them are
+                // waited for, so none reads the archive once it is closed
+                cancellation.cancel();
+                for (CompletableFuture<ConvertedEntry> future : pending) {
+                    try {
+                        future.join();
+                    } catch (CompletionException e) {
+                        // Failed or cancelled after the failure that is being reported
+                    }
+                }
+            }
+        }
+    }
+
+    private ConvertedEntry convertEntry(ArchiveDocument document, CancellationToken cancellation) {
+        String markdown = copyDown.convert(() -> {
+            try {
+                return parse(document).body();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, cancellation);
+        return new ConvertedEntry(nameOf(document.path), markdown);
+    }
+
+    /**
+     * Parses the document, rejecting it unparsed where possible if it is longer than the input
+     * limit of the options
+     */
+    private Document parse(ArchiveDocument document) throws IOException {
+        int maxInputChars = copyDown.options.maxInputChars;
+        try (InputStream in = Files.newInputStream(document.path)) {
+            if (maxInputChars == 0) {
+                return parse(in, document.xhtml);
+            }
+            // Documents with more bytes than the longest allowed document can take are not read further
+            byte[] bytes = in.readNBytes((int) Math.min(Integer.MAX_VALUE - 8,
+                    (long) MAX_BYTES_PER_CHAR * maxInputChars + 1));
+            copyDown.checkInputLength((bytes.length + MAX_BYTES_PER_CHAR - 1) / MAX_BYTES_PER_CHAR);
+            Document html = parse(new ByteArrayInputStream(bytes), document.xhtml);
+            if (bytes.length > maxInputChars) {
+                // Every character takes at least one byte, so only longer documents need counting
+                copyDown.checkInputLength(html.charset()
+                        .decode(ByteBuffer.wrap(bytes))
+                        .length());
+            }
+            return html;
+        }
+    }
+
+    private static Document parse(InputStream in, boolean xhtml) throws IOException {
+        // The charset is taken from the byte order mark, the XML declaration or the meta tags,
+        // UTF-8 otherwise
+        return xhtml ? Jsoup.parse(in, null, "", Parser.xmlParser()) : Jsoup.parse(in, null, "");
+    }
+
+    private static ConvertedEntry await(CompletableFuture<ConvertedEntry> future) throws IOException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        } catch (CancellationException e) {
+            throw new IOException("Conversion was cancelled", e);
+        }
+    }
+
+    private static List<ArchiveDocument> documentsOf(FileSystem zip) throws IOException {
+        Path container = zip.getPath(CONTAINER);
+        if (Files.exists(container)) {
+            return spineOf(container);
+        }
+        try (Stream<Path> paths = Files.walk(zip.getPath("/"))) {
+            return paths.filter(Files::isRegularFile)
+                    .filter(ArchiveConverter::hasHtmlExtension)
+                    .sorted()
+                    .map(path -> new ArchiveDocument(path, nameOf(path).toLowerCase(Locale.ROOT)
+                            .endsWith(XHTML_EXTENSION)))
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Documents of the spine of the package document that the container points to
+     */
+    private static List<ArchiveDocument> spineOf(Path container) throws IOException {
+        Element rootFile = firstElementNamed(parseXml(container), "rootfile");
+        if (rootFile == null || rootFile.attr("full-path").isEmpty()) {
+            throw new IOException("EPUB container does not name a package document");
+        }
+        Path packagePath = container.getFileSystem()
+                .getPath("/", rootFile.attr("full-path"));
+        Document packageDocument = parseXml(packagePath);
+
+        Map<String, Element> manifest = new HashMap<>();
+        for (Element item : elementsNamed(packageDocument, "item")) {
+            manifest.put(item.attr("id"), item);
+        }
+        List<ArchiveDocument> documents = new ArrayList<>();
+        for (Element itemRef : elementsNamed(packageDocument, "itemref")) {
+            Element item = manifest.get(itemRef.attr("idref"));
+            String mediaType = item == null ? "" : item.attr("media-type").toLowerCase(Locale.ROOT);
+            if (!HTML_MEDIA_TYPES.contains(mediaType)) {
+                continue;
+            }
+            documents.add(new ArchiveDocument(packagePath.resolveSibling(pathOf(item.attr("href")))
+                    .normalize(), mediaType.equals(XHTML_MEDIA_TYPE)));
+        }
+        return documents;
+    }
+
+    private static Document parseXml(Path path) throws IOException {
+        try (InputStream in = Files.newInputStream(path)) {
+            return Jsoup.parse(in, null, "", Parser.xmlParser());
+        }
+    }
+
+    private static Element firstElementNamed(Document document, String localName) {
+        List<Element> elements = elementsNamed(document, localName);
+        return elements.isEmpty() ? null : elements.get(0);
+    }
+
+    /**
+     * Elements with the given name, with or without namespace prefix
+     */
+    private static List<Element> elementsNamed(Document document, String localName) {
+        List<Element> elements = new ArrayList<>();
+        for (Element element : document.getAllElements()) {
+            String name = element.tagName();
+            int prefixEnd = name.indexOf(':');
+            if ((prefixEnd < 0 ? name : name.substring(prefixEnd + 1)).equals(localName)) {
+                elements.add(element);
+            }
+        }
+        return elements;
+    }
+
+    /**
+     * Path of a manifest href, which is a relative URL
+     */
+    private static String pathOf(String href) {
+        try {
+            String path = URI.create(href)
+                    .getPath();
+            return path == null ? href : path;
+        } catch (IllegalArgumentException e) {
+            // Not a valid URL, for example because of unescaped spaces. Take it as a plain path
+            return href;
+        }
+    }
+
+    private static boolean hasHtmlExtension(Path path) {
+        String name = path.getFileName()
+                .toString()
+                .toLowerCase(Locale.ROOT);
+        return HTML_EXTENSIONS.stream()
+                .anyMatch(name::endsWith);
+    }
+
+    private static String nameOf(Path document) {
+        String name = document.toString();
+        return name.startsWith("/") ? name.substring(1) : name;
+    }
+
+    /**
+     * Document of an archive, with whether it is parsed as XML
+     */
+    private static final class ArchiveDocument {
+        final Path path;
+        final boolean xhtml;
+
+        ArchiveDocument(Path path, boolean xhtml) {
+            this.path = path;
+            this.xhtml = xhtml;
+        }
+    }
+}
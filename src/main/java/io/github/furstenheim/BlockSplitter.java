@@ -0,0 +1,194 @@
+package io.github.furstenheim;
+
+import org.jsoup.nodes.Node;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Collects the replacements of block rules while converting and locates them in the final
+ * markdown.
+ * <p>
+ * Only blocks that are not inside another block are recorded. The start and end of their text are
+ * marked in the replacement, so wherever the text ends up in the output its offsets are known once
+ * the marks are taken out, however often the same text appears. Text between blocks, for example
+ * of a div without paragraphs, is split at blank lines into paragraphs. A block whose text a
+ * wrapper rewrote, or that no longer spans whole lines, is left to the paragraphs around it.
+ * <p>
+ * The marks are Unicode noncharacters, which are reserved for internal use. The same characters
+ * in the input are dropped from the markdown.
+ */
+class BlockSplitter {
+    static final char BLOCK_START = '\uFDD0';
+    static final char BLOCK_END = '\uFDD1';
+    // Characters that marking a block adds to its replacement
+    static final int MARK_LENGTH = 2;
+
+    private final List<MarkdownBlock.Type> types = new ArrayList<>();
+    private final List<String> texts = new ArrayList<>();
+    private final List<Integer> headingLevels = new ArrayList<>();
+    private final List<String> titles = new ArrayList<>();
+    // Open sections while splitting, outermost first
+    private final List<String> sectionTitles = new ArrayList<>();
+    private final List<Integer> sectionLevels = new ArrayList<>();
+
+    /**
+     * Records a block, without the new lines that separate it from its neighbours and trailing
+     * whitespace that the end of the document would trim
+     *
+     * @return the replacement with the start and end of the block marked
+     */
+    String add (MarkdownBlock.Type type, String replacement, Node element, String content) {
+        int start = 0;
+        while (start < replacement.length() && replacement.charAt(start) == '\n') {
+            start++;
+        }
+        int end = replacement.length();
+        while (end > start && Character.isWhitespace(replacement.charAt(end - 1))) {
+            end--;
+        }
+        if (start == end) {
+            return replacement;
+        }
+        types.add(type);
+        texts.add(replacement.substring(start, end));
+        headingLevels.add(type == MarkdownBlock.Type.HEADING ? element.nodeName().charAt(1) - '0' : 0);
+        titles.add(content.trim());
+        return new StringBuilder(replacement.length() + MARK_LENGTH).append(replacement, 0, start)
+                .append(BLOCK_START)
+                .append(replacement, start, end)
+                .append(BLOCK_END)
+                .append(replacement, end, replacement.length())
+                .toString();
+    }
+
+    /**
+     * @return number of blocks recorded so far
+     */
+    int size () {
+        return types.size();
+    }
+
+    /**
+     * @param marked output of the conversion, with the blocks marked
+     * @param references definitions of referenced links that were appended to the output
+     */
+    MarkdownDocument split (String marked, List<String> references) {
+        StringBuilder output = new StringBuilder(marked.length());
+        List<Integer> starts = new ArrayList<>();
+        List<Integer> ends = new ArrayList<>();
+        int blockStart = -1;
+        for (int i = 0; i < marked.length(); i++) {
+            char c = marked.charAt(i);
+            if (c == BLOCK_START) {
+                blockStart = output.length();
+            } else if (c == BLOCK_END) {
+                if (blockStart >= 0) {
+                    starts.add(blockStart);
+                    ends.add(output.length());
+                }
+                blockStart = -1;
+            } else {
+                output.append(c);
+            }
+        }
+        String markdown = output.toString();
+
+        List<MarkdownBlock> blocks = new ArrayList<>();
+        int end = markdown.length();
+        String definitions = String.join("\n", references);
+        if (!references.isEmpty() && markdown.endsWith(definitions)) {
+            end -= definitions.length();
+        }
+        int position = 0;
+        int next = 0;
+        for (int span = 0; span < starts.size(); span++) {
+            int start = starts.get(span);
+            int after = ends.get(span);
+            int block = find(markdown.substring(start, after), next);
+            if (block < 0) {
+                continue;
+            }
+            next = block + 1;
+            if (start < position || after > end || !spansLines(markdown, start, after)) {
+                continue;
+            }
+            addParagraphs(blocks, markdown, position, start);
+            if (types.get(block) == MarkdownBlock.Type.HEADING) {
+                openSection(titles.get(block), headingLevels.get(block));
+            }
+            blocks.add(new MarkdownBlock(types.get(block), texts.get(block), headingLevels.get(block), headingPath(),
+                    start, after));
+            position = after;
+        }
+        addParagraphs(blocks, markdown, position, end);
+        if (end < markdown.length()) {
+            blocks.add(new MarkdownBlock(MarkdownBlock.Type.LINK_REFERENCES, definitions, 0, headingPath(), end,
+                    markdown.length()));
+        }
+        return new MarkdownDocument(markdown, Collections.unmodifiableList(blocks));
+    }
+
+    /**
+     * @return first recorded block from the given one on with the text, -1 if a wrapper rewrote it
+     */
+    private int find (String text, int from) {
+        for (int block = from; block < texts.size(); block++) {
+            if (texts.get(block)
+                    .equals(text)) {
+                return block;
+            }
+        }
+        return -1;
+    }
+
+    private void openSection (String title, int level) {
+        while (!sectionLevels.isEmpty() && sectionLevels.get(sectionLevels.size() - 1) >= level) {
+            sectionLevels.remove(sectionLevels.size() - 1);
+            sectionTitles.remove(sectionTitles.size() - 1);
+        }
+        sectionLevels.add(level);
+        sectionTitles.add(title);
+    }
+
+    private List<String> headingPath () {
+        return List.copyOf(sectionTitles);
+    }
+
+    /**
+     * Adds the text between two blocks as paragraphs separated by blank lines
+     */
+    private void addParagraphs (List<MarkdownBlock> blocks, String markdown, int from, int to) {
+        int start = from;
+        while (start < to) {
+            int end = markdown.indexOf("\n\n", start);
+            if (end < 0 || end > to) {
+                end = to;
+            }
+            int textStart = start;
+            int textEnd = end;
+            while (textStart < textEnd && Character.isWhitespace(markdown.charAt(textStart))) {
+                textStart++;
+            }
+            while (textEnd > textStart && Character.isWhitespace(markdown.charAt(textEnd - 1))) {
+                textEnd--;
+            }
+            if (textStart < textEnd) {
+                blocks.add(new MarkdownBlock(MarkdownBlock.Type.PARAGRAPH, markdown.substring(textStart, textEnd), 0,
+                        headingPath(), textStart, textEnd));
+            }
+            start = end + 2;
+        }
+    }
+
+    /**
+     * Whether the text between the offsets starts at the beginning of a line and ends at the end
+     * of one
+     */
+    private static boolean spansLines (String markdown, int start, int after) {
+        boolean lineStart = start == 0 || markdown.charAt(start - 1) == '\n';
+        boolean lineEnd = after == markdown.length() || Character.isWhitespace(markdown.charAt(after));
+        return lineStart && lineEnd;
+    }
+}
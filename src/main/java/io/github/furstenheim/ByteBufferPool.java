@@ -0,0 +1,69 @@
+package io.github.furstenheim;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded pool of buffers used to encode markdown before handing it to a channel or stream.
+ * Buffers beyond the pool size are simply left to the garbage collector.
+ */
+class ByteBufferPool {
+    // Most distinct buffer settings whose pools are shared, further settings get a pool per converter
+    private static final int MAX_SHARED_POOLS = 32;
+    // Pools shared by the converters with the same buffer settings, keyed by buffer size, pool size and kind
+    private static final Map<List<Object>, ByteBufferPool> SHARED = new ConcurrentHashMap<>();
+
+    private final int bufferSize;
+    private final int maxPooled;
+    private final boolean direct;
+    private final ConcurrentLinkedQueue<ByteBuffer> idle = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+
+    ByteBufferPool (int bufferSize, int maxPooled, boolean direct) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+        this.direct = direct;
+    }
+
+    /**
+     * Pool shared by every converter with the same buffer settings, so that converters created per
+     * request still reuse buffers. Once {@value #MAX_SHARED_POOLS} settings are shared, a new
+     * pool is returned that only lives as long as its converter.
+     *
+     * @param direct whether the buffers are direct, for channels, or backed by an array, for streams
+     */
+    static ByteBufferPool shared (int bufferSize, int maxPooled, boolean direct) {
+        List<Object> key = List.of(bufferSize, maxPooled, direct);
+        ByteBufferPool pool = SHARED.get(key);
+        if (pool != null) {
+            return pool;
+        }
+        if (SHARED.size() >= MAX_SHARED_POOLS) {
+            return new ByteBufferPool(bufferSize, maxPooled, direct);
+        }
+        // Concurrent callers may briefly exceed the limit, which only shares a few more pools
+        return SHARED.computeIfAbsent(key, k -> new ByteBufferPool(bufferSize, maxPooled, direct));
+    }
+
+    ByteBuffer acquire () {
+        ByteBuffer buffer = idle.poll();
+        if (buffer == null) {
+            return direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+        }
+        idleCount.decrementAndGet();
+        return buffer;
+    }
+
+    void release (ByteBuffer buffer) {
+        buffer.clear();
+        if (idleCount.incrementAndGet() <= maxPooled) {
+            idle.offer(buffer);
+        } else {
+            idleCount.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package io.github.furstenheim;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Memory-mapped hash table from cache keys to the location of their record in a segment file.
+ * <p>
+ * The table uses open addressing with linear probing over fixed size slots, so it lives outside
+ * the heap and is not rebuilt when the cache is opened. It grows by rehashing into a new file.
+ * The index is not synchronized, {@link ConversionCache} guards it with its lock.
+ */
+class CacheIndex implements Closeable {
+    static final int MAX_CAPACITY = 1 << 25;
+
+    private static final int MAGIC = 0x43444958;
+    private static final int FORMAT = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int SLOT_SIZE = 32;
+    private static final double MAX_LOAD = 0.6;
+
+    // Header fields
+    private static final int MAGIC_OFFSET = 0;
+    private static final int FORMAT_OFFSET = 4;
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int SIZE_OFFSET = 12;
+    private static final int GENERATION_OFFSET = 16;
+    private static final int FIRST_SEGMENT_OFFSET = 20;
+    private static final int LAST_SEGMENT_OFFSET = 24;
+
+    // Slot fields. Segment ids start at 1, so a zero segment marks an empty slot
+    private static final int KEY_HIGH = 0;
+    private static final int KEY_LOW = 8;
+    private static final int SEGMENT = 16;
+    private static final int OFFSET = 20;
+    private static final int LENGTH = 24;
+    private static final int SLOT_GENERATION = 28;
+
+    private Path file;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int capacity;
+
+    private CacheIndex (Path file, FileChannel channel, MappedByteBuffer buffer) {
+        this.file = file;
+        this.channel = channel;
+        this.buffer = buffer;
+        this.capacity = buffer.getInt(CAPACITY_OFFSET);
+    }
+
+    /**
+     * Opens the index in the file, creating an empty one if the file does not exist
+     */
+    static CacheIndex open (Path file, int initialCapacity) throws IOException {
+        if (!Files.exists(file)) {
+            return create(file, initialCapacity);
+        }
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+        if (channel.size() < HEADER_SIZE || buffer.getInt(MAGIC_OFFSET) != MAGIC || buffer.getInt(FORMAT_OFFSET) != FORMAT
+                || channel.size() != HEADER_SIZE + (long) buffer.getInt(CAPACITY_OFFSET) * SLOT_SIZE) {
+            channel.close();
+            throw new IOException("Not a conversion cache index: " + file);
+        }
+        return new CacheIndex(file, channel, buffer);
+    }
+
+    /**
+     * Creates an empty index, replacing the file if it exists
+     *
+     * @param capacity number of slots, rounded up to a power of two
+     */
+    static CacheIndex create (Path file, int capacity) throws IOException {
+        int slots = Integer.highestOneBit(Math.max(16, Math.min(MAX_CAPACITY, capacity)) * 2 - 1);
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        // Mapping beyond the end extends the file with zeros, which are empty slots
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) slots * SLOT_SIZE);
+        buffer.putInt(MAGIC_OFFSET, MAGIC);
+        buffer.putInt(FORMAT_OFFSET, FORMAT);
+        buffer.putInt(CAPACITY_OFFSET, slots);
+        return new CacheIndex(file, channel, buffer);
+    }
+
+    /**
+     * @return slot of the key, or -1 if it is not in the index
+     */
+    int find (long keyHigh, long keyLow) {
+        int mask = capacity - 1;
+        for (int slot = firstSlot(keyHigh, mask); ; slot = (slot + 1) & mask) {
+            int position = position(slot);
+            if (buffer.getInt(position + SEGMENT) == 0) {
+                return -1;
+            }
+            if (buffer.getLong(position + KEY_HIGH) == keyHigh && buffer.getLong(position + KEY_LOW) == keyLow) {
+                return slot;
+            }
+        }
+    }
+
+    /**
+     * Adds the location of a record, or replaces it if the key is already present. The table
+     * grows when it gets too full.
+     *
+     * @return false if the index is full and cannot grow any more
+     */
+    boolean put (long keyHigh, long keyLow, int segment, int offset, int length, int generation) throws IOException {
+        int slot = find(keyHigh, keyLow);
+        if (slot < 0) {
+            if (size() + 1 > capacity * MAX_LOAD) {
+                if (capacity >= MAX_CAPACITY) {
+                    return false;
+                }
+                grow();
+            }
+            slot = freeSlot(keyHigh);
+            buffer.putInt(SIZE_OFFSET, size() + 1);
+        }
+        write(slot, keyHigh, keyLow, segment, offset, length, generation);
+        return true;
+    }
+
+    /**
+     * @return false if adding the key would need the index to grow beyond its largest capacity
+     */
+    boolean canPut (long keyHigh, long keyLow) {
+        return capacity < MAX_CAPACITY || size() + 1 <= capacity * MAX_LOAD || find(keyHigh, keyLow) >= 0;
+    }
+
+    int segment (int slot) {
+        return buffer.getInt(position(slot) + SEGMENT);
+    }
+
+    int offset (int slot) {
+        return buffer.getInt(position(slot) + OFFSET);
+    }
+
+    int length (int slot) {
+        return buffer.getInt(position(slot) + LENGTH);
+    }
+
+    long keyHigh (int slot) {
+        return buffer.getLong(position(slot) + KEY_HIGH);
+    }
+
+    long keyLow (int slot) {
+        return buffer.getLong(position(slot) + KEY_LOW);
+    }
+
+    /**
+     * Generation in which the entry was last written or read
+     */
+    int generation (int slot) {
+        return buffer.getInt(position(slot) + SLOT_GENERATION);
+    }
+
+    /**
+     * Marks the entry as used in the generation. Concurrent readers store the same value, so the
+     * write does not need the exclusive lock.
+     */
+    void touch (int slot, int generation) {
+        buffer.putInt(position(slot) + SLOT_GENERATION, generation);
+    }
+
+    boolean isUsed (int slot) {
+        return segment(slot) != 0;
+    }
+
+    int capacity () {
+        return capacity;
+    }
+
+    int size () {
+        return buffer.getInt(SIZE_OFFSET);
+    }
+
+    int generation () {
+        return buffer.getInt(GENERATION_OFFSET);
+    }
+
+    void setGeneration (int generation) {
+        buffer.putInt(GENERATION_OFFSET, generation);
+    }
+
+    /**
+     * Oldest segment that the index refers to. Older segment files are left over from a
+     * compaction and can be deleted.
+     */
+    int firstSegment () {
+        return buffer.getInt(FIRST_SEGMENT_OFFSET);
+    }
+
+    void setFirstSegment (int segment) {
+        buffer.putInt(FIRST_SEGMENT_OFFSET, segment);
+    }
+
+    /**
+     * Segment that records are appended to
+     */
+    int lastSegment () {
+        return buffer.getInt(LAST_SEGMENT_OFFSET);
+    }
+
+    void setLastSegment (int segment) {
+        buffer.putInt(LAST_SEGMENT_OFFSET, segment);
+    }
+
+    /**
+     * Atomically replaces the target file with this index
+     */
+    void moveTo (Path target) throws IOException {
+        force();
+        Files.move(file, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        file = target;
+    }
+
+    void force () {
+        buffer.force();
+    }
+
+    @Override
+    public void close () throws IOException {
+        force();
+        channel.close();
+    }
+
+    private void grow () throws IOException {
+        Path grownFile = file.resolveSibling(file.getFileName() + ".grow");
+        CacheIndex grown = create(grownFile, capacity * 2);
+        for (int slot = 0; slot < capacity; slot++) {
+            if (isUsed(slot)) {
+                int target = grown.freeSlot(keyHigh(slot));
+                grown.write(target, keyHigh(slot), keyLow(slot), segment(slot), offset(slot), length(slot), generation(slot));
+            }
+        }
+        grown.buffer.putInt(SIZE_OFFSET, size());
+        grown.setGeneration(generation());
+        grown.setFirstSegment(firstSegment());
+        grown.setLastSegment(lastSegment());
+        grown.moveTo(file);
+        channel.close();
+        channel = grown.channel;
+        buffer = grown.buffer;
+        capacity = grown.capacity;
+    }
+
+    private int freeSlot (long keyHigh) {
+        int mask = capacity - 1;
+        int slot = firstSlot(keyHigh, mask);
+        while (isUsed(slot)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void write (int slot, long keyHigh, long keyLow, int segment, int offset, int length, int generation) {
+        int position = position(slot);
+        buffer.putLong(position + KEY_HIGH, keyHigh);
+        buffer.putLong(position + KEY_LOW, keyLow);
+        buffer.putInt(position + OFFSET, offset);
+        buffer.putInt(position + LENGTH, length);
+        buffer.putInt(position + SLOT_GENERATION, generation);
+        // Written last, it is what makes the slot used
+        buffer.putInt(position + SEGMENT, segment);
+    }
+
+    private static int firstSlot (long keyHigh, int mask) {
+        return (int) (keyHigh ^ (keyHigh >>> 32)) & mask;
+    }
+
+    private static int position (int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+}
@@ -0,0 +1,20 @@
+package io.github.furstenheim;
+
+/**
+ * Lets another thread stop a running conversion.
+ * <p>
+ * The conversion checks the token as it visits nodes and fails with a
+ * {@link ConversionAbortedException} once it is cancelled. Parsing the HTML is not interrupted,
+ * use {@link OptionsBuilder#withMaxInputChars(int)} to bound it.
+ */
+public final class CancellationToken {
+    private volatile boolean cancelled = false;
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+}
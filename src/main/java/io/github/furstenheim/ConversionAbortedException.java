@@ -0,0 +1,28 @@
+package io.github.furstenheim;
+
+/**
+ * Thrown when a conversion is stopped before it finishes, because the input exceeds one of the
+ * limits of the {@link Options} or because it was cancelled. No partial output is returned.
+ */
+public class ConversionAbortedException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public enum Reason {
+        INPUT_TOO_LARGE,
+        TOO_MANY_NODES,
+        TOO_DEEP,
+        TIMED_OUT,
+        CANCELLED
+    }
+
+    private final Reason reason;
+
+    ConversionAbortedException(Reason reason, String message) {
+        super(message);
+        this.reason = reason;
+    }
+
+    public Reason getReason() {
+        return reason;
+    }
+}
@@ -0,0 +1,569 @@
+package io.github.furstenheim;
+
+import org.jsoup.Jsoup;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.CodeSource;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent cache of conversions, for batch runs that convert mostly unchanged pages again.
+ * <p>
+ * Entries are keyed by a hash of the HTML, the options of the converter and the code of the
+ * library and of jsoup, so a different configuration or build never returns stale markdown. When
+ * the code cannot be read to hash it, the release versions of the library and of jsoup are used instead. Snapshot
+ * builds have no meaningful version, so then nothing is cached, {@link #isEnabled()} is false and every document is
+ * converted. Markdown is appended to segment files and located through a memory-mapped index, so opening a cache does not read its
+ * entries and a hit costs one positional read.
+ * <p>
+ * When the segments grow beyond the size limit they are compacted: entries that were not used in
+ * the current or the previous time the cache was opened are dropped, the rest is copied into new
+ * segments. The limit is therefore soft, entries in use are never dropped.
+ * <p>
+ * A cache directory is used by one process at a time. Within it any number of threads can read
+ * concurrently, writes and compaction are exclusive.
+ */
+public class ConversionCache implements Closeable {
+    public static final long DEFAULT_MAX_BYTES = 4L * 1024 * 1024 * 1024;
+    public static final int DEFAULT_SEGMENT_BYTES = 64 * 1024 * 1024;
+
+    private static final String INDEX_FILE = "index.dat";
+    private static final String COMPACTED_INDEX_FILE = "index.compact";
+    private static final String LOCK_FILE = "lock";
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".dat";
+    private static final int INITIAL_CAPACITY = 1 << 16;
+    // Key high and low, payload length and CRC of the payload
+    private static final int RECORD_HEADER_SIZE = 24;
+    private static final String SNAPSHOT_SUFFIX = "-SNAPSHOT";
+    // Null when the code cannot be identified
+    private static final byte[] CODE_VERSION = codeVersion();
+
+    private final Path directory;
+    private final long maxBytes;
+    private final int segmentBytes;
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+    private final ReadWriteLock rwLock = new ReentrantReadWriteLock();
+    private final Map<Integer, FileChannel> segments = new HashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private CacheIndex index;
+    private long totalBytes = 0;
+    private long compactionThreshold;
+    private boolean closed = false;
+
+    private ConversionCache(Path directory, long maxBytes, int segmentBytes, FileChannel lockChannel, FileLock lock) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.segmentBytes = segmentBytes;
+        this.lockChannel = lockChannel;
+        this.lock = lock;
+        this.compactionThreshold = maxBytes;
+    }
+
+    /**
+     * Opens the cache in the directory, creating it if needed, with the default limits
+     */
+    public static ConversionCache open(Path directory) throws IOException {
+        return open(directory, DEFAULT_MAX_BYTES, DEFAULT_SEGMENT_BYTES);
+    }
+
+    /**
+     * Opens the cache in the directory, creating it if needed
+     *
+     * @param directory directory of the cache files
+     * @param maxBytes size of the segments above which they are compacted
+     * @param segmentBytes size at which a new segment file is started
+     * @throws IOException if the cache cannot be read or another process uses it
+     */
+    public static ConversionCache open(Path directory, long maxBytes, int segmentBytes) throws IOException {
+        if (maxBytes <= 0 || segmentBytes <= RECORD_HEADER_SIZE) {
+            throw new IllegalArgumentException("maxBytes and segmentBytes must be positive");
+        }
+        Files.createDirectories(directory);
+        FileChannel lockChannel = FileChannel.open(directory.resolve(LOCK_FILE), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE);
+        FileLock lock;
+        try {
+            lock = lockChannel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            lock = null;
+        }
+        if (lock == null) {
+            lockChannel.close();
+            throw new IOException("Conversion cache " + directory + " is in use");
+        }
+        ConversionCache cache = new ConversionCache(directory, maxBytes, segmentBytes, lockChannel, lock);
+        try {
+            cache.load();
+        } catch (IOException | RuntimeException e) {
+            cache.close();
+            throw e;
+        }
+        return cache;
+    }
+
+    /**
+     * Returns the cached markdown of the HTML, converting and storing it if it is not cached yet
+     *
+     * @param copyDown converter used on a miss. Its options are part of the key
+     * @param html HTML to be converted
+     * @return markdown text
+     * @throws java.io.UncheckedIOException if the cache files cannot be read or written
+     */
+    public String convert(CopyDown copyDown, String html) {
+        if (CODE_VERSION == null) {
+            misses.increment();
+            return copyDown.convert(html);
+        }
+        byte[] key = keyOf(copyDown.options, html);
+        long keyHigh = ByteBuffer.wrap(key)
+                .getLong(0);
+        long keyLow = ByteBuffer.wrap(key)
+                .getLong(8);
+        try {
+            String cached = get(keyHigh, keyLow);
+            if (cached != null) {
+                hits.increment();
+                return cached;
+            }
+            misses.increment();
+            String markdown = copyDown.convert(html);
+            put(keyHigh, keyLow, markdown);
+            return markdown;
+        } catch (IOException e) {
+            throw new java.io.UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return false if the code of the converter cannot be identified, then nothing is cached and
+     * every document is converted
+     */
+    public boolean isEnabled() {
+        return CODE_VERSION != null;
+    }
+
+    /**
+     * @return number of conversions answered from the cache since it was opened
+     */
+    public long hits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return number of conversions that were not cached since it was opened
+     */
+    public long misses() {
+        return misses.sum();
+    }
+
+    /**
+     * Drops the entries that were not used in the current or the previous time the cache was
+     * opened and rewrites the rest into new segments. Runs automatically when the segments exceed
+     * the size limit.
+     */
+    public void compact() throws IOException {
+        rwLock.writeLock()
+                .lock();
+        try {
+            ensureOpen();
+            compactLocked();
+        } finally {
+            rwLock.writeLock()
+                    .unlock();
+        }
+    }
+
+    /**
+     * Flushes the index and segments and releases the directory
+     */
+    @Override
+    public void close() throws IOException {
+        rwLock.writeLock()
+                .lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            for (FileChannel segment : segments.values()) {
+                segment.force(false);
+                segment.close();
+            }
+            segments.clear();
+            if (index != null) {
+                index.close();
+            }
+        } finally {
+            rwLock.writeLock()
+                    .unlock();
+            if (lock.isValid()) {
+                lock.release();
+            }
+            lockChannel.close();
+        }
+    }
+
+    private void load() throws IOException {
+        index = CacheIndex.open(directory.resolve(INDEX_FILE), INITIAL_CAPACITY);
+        Files.deleteIfExists(directory.resolve(COMPACTED_INDEX_FILE));
+        if (index.lastSegment() == 0) {
+            index.setFirstSegment(1);
+            index.setLastSegment(1);
+        }
+        // A new generation per opening, entries untouched for two generations are compacted away
+        index.setGeneration(index.generation() + 1);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                int segment = segmentIdOf(file);
+                if (segment < index.firstSegment() || segment > index.lastSegment()) {
+                    // Left over from a compaction that did not finish or whose old segments were not deleted
+                    Files.delete(file);
+                }
+            }
+        }
+        for (int segment = index.firstSegment(); segment <= index.lastSegment(); segment++) {
+            FileChannel channel = openSegment(segment);
+            segments.put(segment, channel);
+            totalBytes += channel.size();
+        }
+        compactionThreshold = Math.max(maxBytes, totalBytes);
+    }
+
+    private String get(long keyHigh, long keyLow) throws IOException {
+        rwLock.readLock()
+                .lock();
+        try {
+            ensureOpen();
+            int slot = index.find(keyHigh, keyLow);
+            if (slot < 0) {
+                return null;
+            }
+            FileChannel segment = segments.get(index.segment(slot));
+            if (segment == null) {
+                return null;
+            }
+            String markdown = readRecord(segment, index.offset(slot), index.length(slot), keyHigh, keyLow);
+            if (markdown != null) {
+                index.touch(slot, index.generation());
+            }
+            return markdown;
+        } finally {
+            rwLock.readLock()
+                    .unlock();
+        }
+    }
+
+    private void put(long keyHigh, long keyLow, String markdown) throws IOException {
+        byte[] payload = markdown.getBytes(StandardCharsets.UTF_8);
+        if (payload.length > segmentBytes - RECORD_HEADER_SIZE) {
+            // Never fits in a segment, the document is converted every time
+            return;
+        }
+        rwLock.writeLock()
+                .lock();
+        try {
+            ensureOpen();
+            int slot = index.find(keyHigh, keyLow);
+            if (slot >= 0 && readRecord(segments.get(index.segment(slot)), index.offset(slot), index.length(slot),
+                    keyHigh, keyLow) != null) {
+                // Converted concurrently by another thread. An entry whose record does not read back
+                // is replaced
+                return;
+            }
+            FileChannel segment = segments.get(index.lastSegment());
+            if (segment.size() + RECORD_HEADER_SIZE + payload.length > segmentBytes) {
+                segment = roll();
+                if (totalBytes > compactionThreshold) {
+                    compactLocked();
+                    segment = segments.get(index.lastSegment());
+                }
+            }
+            if (!index.canPut(keyHigh, keyLow)) {
+                // The index cannot grow any more, only dropping unused entries makes room
+                compactLocked();
+                if (!index.canPut(keyHigh, keyLow)) {
+                    // Every entry is in use, the document is converted every time
+                    return;
+                }
+                segment = segments.get(index.lastSegment());
+            }
+            int offset = (int) segment.size();
+            // Indexed once the record is written, so a failed write leaves the index untouched
+            writeRecord(segment, offset, keyHigh, keyLow, payload);
+            totalBytes += RECORD_HEADER_SIZE + payload.length;
+            index.put(keyHigh, keyLow, index.lastSegment(), offset, payload.length, index.generation());
+        } finally {
+            rwLock.writeLock()
+                    .unlock();
+        }
+    }
+
+    private FileChannel roll() throws IOException {
+        segments.get(index.lastSegment())
+                .force(false);
+        int next = index.lastSegment() + 1;
+        FileChannel segment = openSegment(next);
+        segments.put(next, segment);
+        index.setLastSegment(next);
+        return segment;
+    }
+
+    private void compactLocked() throws IOException {
+        int generation = index.generation();
+        int live = 0;
+        for (int slot = 0; slot < index.capacity(); slot++) {
+            if (index.isUsed(slot) && index.generation(slot) >= generation - 1) {
+                live++;
+            }
+        }
+        int firstSegment = index.lastSegment() + 1;
+        CacheIndex compacted = CacheIndex.create(directory.resolve(COMPACTED_INDEX_FILE),
+                (int) Math.min(CacheIndex.MAX_CAPACITY, Math.max(INITIAL_CAPACITY, live * 2L)));
+        Map<Integer, FileChannel> compactedSegments = new HashMap<>();
+        int segmentId = firstSegment;
+        FileChannel target = openSegment(segmentId);
+        compactedSegments.put(segmentId, target);
+        long compactedBytes = 0;
+        try {
+            for (int slot = 0; slot < index.capacity(); slot++) {
+                if (!index.isUsed(slot) || index.generation(slot) < generation - 1) {
+                    continue;
+                }
+                long keyHigh = index.keyHigh(slot);
+                long keyLow = index.keyLow(slot);
+                String markdown = readRecord(segments.get(index.segment(slot)), index.offset(slot), index.length(slot),
+                        keyHigh, keyLow);
+                if (markdown == null) {
+                    continue;
+                }
+                byte[] payload = markdown.getBytes(StandardCharsets.UTF_8);
+                if (target.size() + RECORD_HEADER_SIZE + payload.length > segmentBytes) {
+                    target.force(false);
+                    target = openSegment(++segmentId);
+                    compactedSegments.put(segmentId, target);
+                }
+                int offset = (int) target.size();
+                writeRecord(target, offset, keyHigh, keyLow, payload);
+                compactedBytes += RECORD_HEADER_SIZE + payload.length;
+                compacted.put(keyHigh, keyLow, segmentId, offset, payload.length, index.generation(slot));
+            }
+            target.force(false);
+            compacted.setGeneration(generation);
+            compacted.setFirstSegment(firstSegment);
+            compacted.setLastSegment(segmentId);
+            compacted.moveTo(directory.resolve(INDEX_FILE));
+        } catch (IOException | RuntimeException e) {
+            for (FileChannel channel : compactedSegments.values()) {
+                channel.close();
+            }
+            compacted.close();
+            throw e;
+        }
+        // The new index is in place, the old segments can go
+        List<Integer> oldSegments = new ArrayList<>(segments.keySet());
+        for (int segment : oldSegments) {
+            segments.remove(segment)
+                    .close();
+            Files.deleteIfExists(segmentPath(segment));
+        }
+        index.close();
+        index = compacted;
+        segments.putAll(compactedSegments);
+        totalBytes = compactedBytes;
+        // Avoid compacting again and again when most entries are in use
+        compactionThreshold = Math.max(maxBytes, 2 * compactedBytes);
+    }
+
+    private static String readRecord(FileChannel segment, int offset, int length, long keyHigh, long keyLow)
+            throws IOException {
+        if (segment == null || (long) offset + RECORD_HEADER_SIZE + length > segment.size()) {
+            return null;
+        }
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + length);
+        while (record.hasRemaining()) {
+            if (segment.read(record, offset + record.position()) < 0) {
+                return null;
+            }
+        }
+        record.flip();
+        if (record.getLong() != keyHigh || record.getLong() != keyLow || record.getInt() != length) {
+            return null;
+        }
+        int crc = record.getInt();
+        CRC32 checksum = new CRC32();
+        checksum.update(record.array(), RECORD_HEADER_SIZE, length);
+        if ((int) checksum.getValue() != crc) {
+            // Torn write of a crash, treated as a miss
+            return null;
+        }
+        return new String(record.array(), RECORD_HEADER_SIZE, length, StandardCharsets.UTF_8);
+    }
+
+    private static void writeRecord(FileChannel segment, int offset, long keyHigh, long keyLow, byte[] payload)
+            throws IOException {
+        CRC32 checksum = new CRC32();
+        checksum.update(payload);
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + payload.length);
+        record.putLong(keyHigh)
+                .putLong(keyLow)
+                .putInt(payload.length)
+                .putInt((int) checksum.getValue())
+                .put(payload)
+                .flip();
+        while (record.hasRemaining()) {
+            segment.write(record, offset + record.position());
+        }
+    }
+
+    private FileChannel openSegment(int segment) throws IOException {
+        return FileChannel.open(segmentPath(segment), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+    }
+
+    private Path segmentPath(int segment) {
+        return directory.resolve(String.format("%s%06d%s", SEGMENT_PREFIX, segment, SEGMENT_SUFFIX));
+    }
+
+    private static int segmentIdOf(Path file) {
+        String name = file.getFileName()
+                .toString();
+        try {
+            return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private void ensureOpen() {
+        if (closed) {
+            throw new IllegalStateException("Conversion cache is closed");
+        }
+    }
+
+    /**
+     * First 128 bits of the SHA-256 of the code, the options and the HTML
+     */
+    private static byte[] keyOf(Options options, String html) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+        digest.update(CODE_VERSION);
+        digest.update(options.fingerprint()
+                .getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        digest.update(html.getBytes(StandardCharsets.UTF_8));
+        return digest.digest();
+    }
+
+    /**
+     * SHA-256 of the classes of the library and of jsoup, which produce the markdown. Snapshot
+     * builds keep their version while their code changes, so the version is only used for classes
+     * that are not loaded from a file, like jars nested in another jar.
+     *
+     * @return the hash, or null if the classes cannot be read and have no release version
+     */
+    private static byte[] codeVersion() {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (Class<?> type : List.of(ConversionCache.class, Jsoup.class)) {
+                byte[] code = codeHash(type);
+                if (code != null) {
+                    digest.update(code);
+                    continue;
+                }
+                String version = type.getPackage()
+                        .getImplementationVersion();
+                if (version == null || version.endsWith(SNAPSHOT_SUFFIX)) {
+                    return null;
+                }
+                digest.update((type.getName() + '\0' + version).getBytes(StandardCharsets.UTF_8));
+            }
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return SHA-256 of the jar or class directory the type was loaded from, or null if it cannot be read
+     */
+    private static byte[] codeHash(Class<?> type) throws NoSuchAlgorithmException {
+        CodeSource source = type.getProtectionDomain()
+                .getCodeSource();
+        if (source == null || source.getLocation() == null) {
+            return null;
+        }
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        try {
+            addCode(digest, Paths.get(source.getLocation()
+                    .toURI()));
+        } catch (IOException | URISyntaxException | RuntimeException e) {
+            // Not loaded from a jar or a directory of classes, like a jar nested in another jar, or not readable
+            return null;
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Adds a jar, or the class files of a directory in path order, to the digest
+     */
+    private static void addCode(MessageDigest digest, Path location) throws IOException {
+        if (!Files.isDirectory(location)) {
+            addFile(digest, location);
+            return;
+        }
+        List<Path> classFiles;
+        try (Stream<Path> files = Files.walk(location)) {
+            classFiles = files.filter(file -> file.toString()
+                            .endsWith(".class"))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+        for (Path classFile : classFiles) {
+            digest.update(location.relativize(classFile)
+                    .toString()
+                    .getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            addFile(digest, classFile);
+        }
+    }
+
+    private static void addFile(MessageDigest digest, Path file) throws IOException {
+        // Streamed, a jar can be large
+        try (InputStream in = new DigestInputStream(Files.newInputStream(file), digest)) {
+            in.transferTo(OutputStream.nullOutputStream());
+        }
+    }
+}
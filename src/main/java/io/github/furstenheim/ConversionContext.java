@@ -0,0 +1,364 @@
+package io.github.furstenheim;
+
+import org.jsoup.nodes.Element;
+import org.jsoup.nodes.Node;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Scratch state of a single conversion.
+ * <p>
+ * Contexts are pooled per thread and reset before reuse, so a converter does not allocate its
+ * bookkeeping on every call. A context that is already in use on the current thread is never
+ * handed out twice; a fresh one is created instead.
+ */
+class ConversionContext {
+    private static final ThreadLocal<ConversionContext> POOLED = ThreadLocal.withInitial(ConversionContext::new);
+    private static final ThreadLocal<ConversionContext> CURRENT = new ThreadLocal<>();
+
+    private static final int MAX_RETAINED_REFERENCES = 256;
+    private static final int MAX_RETAINED_NODES = 4096;
+
+    // Converter running the conversion, for rules that convert parts of the document themselves
+    CopyDown converter = null;
+    // Node whose rule replacement is being built, for rules that convert parts of it themselves
+    CopyNode replacedNode = null;
+    List<String> references = new ArrayList<>();
+    long nodeCount = 0;
+    // Blank state of the elements inspected so far
+    Map<Node, Boolean> blankElements = new IdentityHashMap<>();
+    // First and last characters of the text of the elements inspected so far
+    Map<Node, String> leadingTexts = new IdentityHashMap<>();
+    Map<Node, String> trailingTexts = new IdentityHashMap<>();
+    // Position of an element among the element children of its parent, filled once per parent
+    Map<Node, Integer> elementIndexes = new IdentityHashMap<>();
+    // Number of element children of the parents indexed so far
+    Map<Node, Integer> elementCounts = new IdentityHashMap<>();
+    // Parsed start attribute of the ordered lists seen so far
+    Map<Node, Integer> listStarts = new IdentityHashMap<>();
+    // Characters of markdown the conversion may still produce, when the output is limited
+    long outputBudget = Long.MAX_VALUE;
+    // Set once text was cut because the budget ran out, nothing after it is converted
+    boolean truncated = false;
+    // Budget before the element whose replacement is being built, for rules that output text of their own
+    long replacementBudget = Long.MAX_VALUE;
+
+    // Blocks of a conversion to blocks, null otherwise
+    BlockSplitter blocks = null;
+    // Number of block rules whose replacement is being built
+    int blockDepth = 0;
+    // Fingerprints of the subtrees that may be memoized, null when the conversion does not use a memo
+    Map<Node, SubtreeMemo.Key> fingerprints = null;
+    // Limits of the conversion, zero when not limited
+    private int maxNodes = 0;
+    private int maxDepth = 0;
+    private long deadline = 0;
+    private boolean hasDeadline = false;
+    private CancellationToken cancellationToken = null;
+    private long visitedNodes = 0;
+    private boolean countingNodes = true;
+    private int checkpoints = 0;
+
+    private boolean inUse = false;
+    private ConversionContext previous = null;
+
+    /**
+     * Takes a context from the pool of the current thread and makes it the current one
+     */
+    static ConversionContext open () {
+        ConversionContext context = POOLED.get();
+        if (context.inUse) {
+            context = new ConversionContext();
+        }
+        context.inUse = true;
+        context.activate();
+        return context;
+    }
+
+    /**
+     * Context of the conversion running on the current thread
+     */
+    static ConversionContext current () {
+        return CURRENT.get();
+    }
+
+    /**
+     * Index of the element among the element children of its parent. All siblings are indexed
+     * on the first call for a parent, so a list of n items costs O(n) instead of O(n^2).
+     */
+    int elementIndex (Element element) {
+        Integer index = elementIndexes.get(element);
+        if (index == null) {
+            Element parent = element.parent();
+            if (parent == null) {
+                return 0;
+            }
+            int position = 0;
+            for (Node sibling : parent.childNodes()) {
+                if (sibling instanceof Element) {
+                    elementIndexes.put(sibling, position++);
+                }
+            }
+            elementCounts.put(parent, position);
+            index = elementIndexes.get(element);
+        }
+        return index;
+    }
+
+    /**
+     * Whether the element is the last element child of its parent, answered from the same index
+     * as {@link #elementIndex(Element)}
+     */
+    boolean isLastElement (Element element) {
+        int index = elementIndex(element);
+        Element parent = element.parent();
+        return parent == null || index == elementCounts.get(parent) - 1;
+    }
+
+    /**
+     * Number of the first item of an ordered list. The start attribute is parsed once per list
+     * instead of once per item.
+     *
+     * @throws NumberFormatException if the start attribute is not an integer
+     */
+    int listStart (Element list) {
+        Integer start = listStarts.get(list);
+        if (start == null) {
+            String attribute = list.attr("start");
+            start = 1;
+            if (!attribute.isEmpty()) {
+                try {
+                    start = Integer.parseInt(attribute);
+                } catch (NumberFormatException e) {
+                    throw new NumberFormatException("Unable to parse " + attribute + " as an integer");
+                }
+            }
+            listStarts.put(list, start);
+        }
+        return start;
+    }
+
+    /**
+     * Applies the limits of the options to the conversion. The time limit starts now.
+     *
+     * @param cancellationToken token checked while converting, or null
+     */
+    void limit (Options options, CancellationToken cancellationToken) {
+        limitOutput(options.maxOutputChars);
+        maxNodes = options.maxNodes;
+        maxDepth = options.maxDepth;
+        hasDeadline = options.timeout != null && !options.timeout.isZero();
+        if (hasDeadline) {
+            deadline = System.nanoTime() + options.timeout.toNanos();
+        }
+        this.cancellationToken = cancellationToken;
+    }
+
+    /**
+     * Counts a node of the document and checks the limits
+     *
+     * @param depth number of ancestors of the node below the root
+     * @throws ConversionAbortedException if the conversion must stop
+     */
+    void visitNode (int depth) {
+        if (countingNodes && maxNodes > 0 && ++visitedNodes > maxNodes) {
+            throw new ConversionAbortedException(ConversionAbortedException.Reason.TOO_MANY_NODES,
+                    "Document has more than " + maxNodes + " nodes");
+        }
+        checkDepth(depth);
+    }
+
+    /**
+     * Checks the depth limit, the cancellation token and the time limit for a node that is counted
+     * later, while the document is still being built
+     *
+     * @param depth number of ancestors of the node below the root
+     * @throws ConversionAbortedException if the conversion must stop
+     */
+    void checkDepth (int depth) {
+        if (maxDepth > 0 && depth > maxDepth) {
+            throw new ConversionAbortedException(ConversionAbortedException.Reason.TOO_DEEP,
+                    "Document is nested deeper than " + maxDepth + " levels");
+        }
+        checkpoint();
+    }
+
+    /**
+     * Nodes are counted while collapsing the whitespace of the document. Table cells of a preview
+     * are collapsed again when converted, which must not count them twice.
+     */
+    void stopCountingNodes () {
+        countingNodes = false;
+    }
+
+    /**
+     * Checks the cancellation token and the time limit
+     *
+     * @throws ConversionAbortedException if the conversion must stop
+     */
+    void checkpoint () {
+        if (cancellationToken != null && cancellationToken.isCancelled()) {
+            throw new ConversionAbortedException(ConversionAbortedException.Reason.CANCELLED, "Conversion was cancelled");
+        }
+        // Reading the clock costs about as much as visiting a node, so it is only read now and then
+        if (hasDeadline && (++checkpoints & 63) == 0 && System.nanoTime() - deadline > 0) {
+            throw new ConversionAbortedException(ConversionAbortedException.Reason.TIMED_OUT, "Conversion timed out");
+        }
+    }
+
+    /**
+     * Limits the markdown of the conversion to about the given number of characters
+     *
+     * @param maxOutputChars limit, or zero for no limit
+     */
+    void limitOutput (int maxOutputChars) {
+        outputBudget = maxOutputChars == 0 ? Long.MAX_VALUE : maxOutputChars;
+    }
+
+    /**
+     * Starts the markdown of another element of the same document. References and the output
+     * budget belong to each markdown, what is known about the nodes of the document is kept.
+     *
+     * @param maxOutputChars limit, or zero for no limit
+     */
+    void restartOutput (int maxOutputChars) {
+        references.clear();
+        limitOutput(maxOutputChars);
+        truncated = false;
+        replacementBudget = Long.MAX_VALUE;
+    }
+
+    boolean isOutputLimited () {
+        return outputBudget != Long.MAX_VALUE;
+    }
+
+    /**
+     * @return true once no further node should be converted
+     */
+    boolean isOutputExhausted () {
+        return truncated || outputBudget <= 0;
+    }
+
+    /**
+     * Counts markdown produced by the conversion against the budget
+     */
+    void consumeOutput (long chars) {
+        if (isOutputLimited()) {
+            outputBudget -= chars;
+        }
+    }
+
+    /**
+     * Cuts the text so that it fits in the budget, at the last whitespace that fits if there is
+     * one. The budget is not consumed, the caller counts the markdown made of the text.
+     */
+    String fitToBudget (String text) {
+        return fitToBudget(text, outputBudget);
+    }
+
+    String fitToBudget (String text, long budget) {
+        if (text.length() <= budget) {
+            return text;
+        }
+        truncated = true;
+        int end = (int) Math.max(0, budget);
+        int space = end;
+        while (space >= 0 && !Character.isWhitespace(text.charAt(space))) {
+            space--;
+        }
+        if (space >= 0) {
+            end = space;
+        } else if (end > 0 && Character.isHighSurrogate(text.charAt(end - 1))) {
+            // A single word longer than the budget, cut between characters
+            end--;
+        }
+        return text.substring(0, end);
+    }
+
+    /**
+     * Makes this context the current one, remembering the one it replaces
+     */
+    void activate () {
+        previous = CURRENT.get();
+        CURRENT.set(this);
+    }
+
+    /**
+     * Restores the context that was current before {@link #activate()}
+     */
+    void deactivate () {
+        if (previous == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(previous);
+        }
+        previous = null;
+    }
+
+    /**
+     * Restores the previous context and hands this one back to the pool
+     */
+    void close () {
+        deactivate();
+        reset();
+        inUse = false;
+    }
+
+    private void reset () {
+        converter = null;
+        replacedNode = null;
+        nodeCount = 0;
+        outputBudget = Long.MAX_VALUE;
+        truncated = false;
+        replacementBudget = Long.MAX_VALUE;
+        maxNodes = 0;
+        maxDepth = 0;
+        hasDeadline = false;
+        cancellationToken = null;
+        blocks = null;
+        blockDepth = 0;
+        fingerprints = null;
+        visitedNodes = 0;
+        countingNodes = true;
+        checkpoints = 0;
+        // Do not keep the tables of an unusually large document alive
+        if (blankElements.size() > MAX_RETAINED_NODES) {
+            blankElements = new IdentityHashMap<>();
+        } else {
+            blankElements.clear();
+        }
+        if (leadingTexts.size() > MAX_RETAINED_NODES) {
+            leadingTexts = new IdentityHashMap<>();
+        } else {
+            leadingTexts.clear();
+        }
+        if (trailingTexts.size() > MAX_RETAINED_NODES) {
+            trailingTexts = new IdentityHashMap<>();
+        } else {
+            trailingTexts.clear();
+        }
+        if (elementIndexes.size() > MAX_RETAINED_NODES) {
+            elementIndexes = new IdentityHashMap<>();
+        } else {
+            elementIndexes.clear();
+        }
+        if (elementCounts.size() > MAX_RETAINED_NODES) {
+            elementCounts = new IdentityHashMap<>();
+        } else {
+            elementCounts.clear();
+        }
+        if (listStarts.size() > MAX_RETAINED_NODES) {
+            listStarts = new IdentityHashMap<>();
+        } else {
+            listStarts.clear();
+        }
+        if (references.size() > MAX_RETAINED_REFERENCES) {
+            references = new ArrayList<>();
+        } else {
+            references.clear();
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package io.github.furstenheim;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event covering one call to {@link CopyDown#convert(String)}, or one published
+ * conversion from its first chunk to its last.
+ * It can be configured like any other event, for example with
+ * {@code jfr configure +io.github.furstenheim.Conversion#threshold=10ms}.
+ */
+@Name("io.github.furstenheim.Conversion")
+@Label("Markdown Conversion")
+@Category("CopyDown")
+@Description("Conversion of an HTML document to markdown")
+@StackTrace(false)
+class ConversionEvent extends jdk.jfr.Event {
+    @Label("Input Length")
+    @Description("Characters of HTML converted, -1 when converting a DOM tree")
+    long inputLength = -1;
+
+    @Label("Output Length")
+    @Description("Characters of markdown produced")
+    long outputLength;
+
+    @Label("Node Count")
+    @Description("Nodes visited while converting")
+    long nodeCount;
+}
@@ -0,0 +1,42 @@
+package io.github.furstenheim;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event covering one phase of a conversion. Disabled unless the recording
+ * settings enable it, in which case it nests within {@link ConversionEvent} on the same thread.
+ */
+@Name("io.github.furstenheim.ConversionPhase")
+@Label("Markdown Conversion Phase")
+@Category("CopyDown")
+@Description("Phase of an HTML to markdown conversion")
+@StackTrace(false)
+@Enabled(false)
+class ConversionPhaseEvent extends jdk.jfr.Event {
+    static final String PARSE = "parse";
+    static final String WHITESPACE_COLLAPSE = "whitespace collapse";
+    static final String TRAVERSAL = "traversal";
+    static final String TABLE = "table";
+    static final String POST_PROCESS = "post process";
+
+    @Label("Phase")
+    String phase;
+
+    static ConversionPhaseEvent start (String phase) {
+        ConversionPhaseEvent event = new ConversionPhaseEvent();
+        event.phase = phase;
+        event.begin();
+        return event;
+    }
+
+    void finish () {
+        if (shouldCommit()) {
+            commit();
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package io.github.furstenheim;
+
+/**
+ * Markdown of one HTML document of an archive
+ */
+public final class ConvertedEntry {
+    private final String name;
+    private final String markdown;
+
+    ConvertedEntry(String name, String markdown) {
+        this.name = name;
+        this.markdown = markdown;
+    }
+
+    /**
+     * @return path of the document inside the archive, without leading slash
+     */
+    public String getName() {
+        return name;
+    }
+
+    public String getMarkdown() {
+        return markdown;
+    }
+}
@@ -4,8 +4,27 @@ import org.jsoup.nodes.Element;
 import org.jsoup.nodes.Node;
 import org.jsoup.nodes.TextNode;
 import org.jsoup.select.Elements;
+import org.jsoup.select.Evaluator;
+import org.jsoup.select.NodeFilter;
+import org.jsoup.select.NodeTraversor;
+import org.jsoup.select.QueryParser;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -14,296 +33,886 @@ import java.util.regex.Pattern;
  */
 public class CopyDown {
     public CopyDown() {
-        this.options = OptionsBuilder.anOptions()
-                .build();
-        setUp();
+        this(OptionsBuilder.anOptions()
+                .build());
     }
 
     public CopyDown(Options options) {
+        this(options, null);
+    }
+
+    /**
+     * Converter that takes the markdown of subtrees it has seen before from the memo, for example
+     * the navigation and footer shared by the pages of a site. Output is the same as without the
+     * memo.
+     * <p>
+     * The memo is not used for previews limited by {@link OptionsBuilder#withMaxOutputChars(int)},
+     * for {@link #convertToBlocks(String)}, nor with numbered referenced links, whose numbers
+     * depend on the links before them.
+     *
+     * @param memo memo shared with other converters, or null
+     */
+    public CopyDown(Options options, SubtreeMemo memo) {
         this.options = options;
+        this.memo = memo;
         setUp();
     }
 
     /**
      * Accepts an HTML string and converts it to Markdown
      * <p>
-     * Note, if LinkStyle is chosen to be REFERENCED, the method is not thread safe.
+     * Conversion state lives in a context that is pooled per thread, so the method is thread safe.
      *
      * @param input HTML to be converted
      * @return markdown text
      */
     public String convert(String input) {
-        references = new ArrayList<>();
-        CopyNode copyRootNode = new CopyNode(input);
-        String result = process(copyRootNode);
-        return postProcess(result);
+        return convert(input, (CancellationToken) null);
+    }
+
+    /**
+     * Same as {@link #convert(String)}, but stops when the token is cancelled
+     *
+     * @param input HTML to be converted
+     * @param cancellationToken token checked while converting, or null
+     * @return markdown text
+     * @throws ConversionAbortedException if the conversion is cancelled or the input exceeds the limits of the
+     * options
+     */
+    public String convert(String input, CancellationToken cancellationToken) {
+        checkInputLength(input);
+        if (isPlainText(input)) {
+            return convert(() -> convertPlainText(input), input.length(), cancellationToken);
+        }
+        return convert(() -> traverse(new CopyNode(input)), input.length(), cancellationToken);
+    }
+
+    /**
+     * Converts the HTML string and splits the markdown into its top-level blocks: headings,
+     * paragraphs, lists, tables, code blocks, block quotes and thematic breaks.
+     * <p>
+     * Blocks are recorded as the rules produce them, so the markdown does not need to be parsed
+     * again. Each block carries its offsets in the markdown and the headings of the sections it
+     * belongs to, for example to split documents into chunks.
+     *
+     * @param input HTML to be converted
+     * @return the markdown, the same as {@link #convert(String)}, and its blocks
+     */
+    public MarkdownDocument convertToBlocks(String input) {
+        checkInputLength(input);
+        BlockSplitter blocks = new BlockSplitter();
+        List<String> references = new ArrayList<>();
+        String markdown = convert(() -> {
+            ConversionContext context = ConversionContext.current();
+            context.blocks = blocks;
+            String result = isPlainText(input) ? convertPlainText(input) : traverse(new CopyNode(input));
+            references.addAll(context.references);
+            return result;
+        }, input.length(), null);
+        return blocks.split(markdown, references);
+    }
+
+    /**
+     * Converts every element of the HTML string that matches the CSS selector, for example each
+     * post of a forum page.
+     * <p>
+     * The page is parsed and its whitespace collapsed once, and the elements are converted where
+     * they are, sharing what the conversion learns about the nodes of the page. Each element
+     * gets the markdown it would get in the page, with its own link references, and limits on
+     * the output apply to each of them. Elements inside other matched elements are converted
+     * on their own too.
+     *
+     * @param input HTML page
+     * @param cssSelector selector of the elements to convert
+     * @return markdown of the matched elements, in document order
+     * @throws org.jsoup.select.Selector.SelectorParseException if the selector is not valid
+     * @throws ConversionAbortedException if the input exceeds the limits of the options
+     */
+    public List<String> convertEach(String input, String cssSelector) {
+        checkInputLength(input);
+        Evaluator evaluator = QueryParser.parse(cssSelector);
+        ConversionEvent event = new ConversionEvent();
+        event.begin();
+        ConversionContext context = ConversionContext.open();
+        context.converter = this;
+        context.limit(options, null);
+        try {
+            boolean memoized = isMemoized(context);
+            // The whole page is collapsed, however short the markdown of each element may be
+            context.limitOutput(0);
+            CopyNode root = new CopyNode(input);
+            context.stopCountingNodes();
+            if (memoized) {
+                context.fingerprints = memo.fingerprint(root.element, options);
+            }
+            List<String> results = new ArrayList<>();
+            long outputLength = 0;
+            for (Element element : ((Element) root.element).select(evaluator)) {
+                if (element == root.element) {
+                    continue;
+                }
+                context.restartOutput(options.maxOutputChars);
+                ConversionPhaseEvent traversalEvent = ConversionPhaseEvent.start(ConversionPhaseEvent.TRAVERSAL);
+                // Each element is the whole of its markdown, like a document
+                String result = replacementForNode(inPlace(root, element), false);
+                traversalEvent.finish();
+                ConversionPhaseEvent postProcessEvent = ConversionPhaseEvent.start(ConversionPhaseEvent.POST_PROCESS);
+                String markdown = postProcess(result);
+                postProcessEvent.finish();
+                results.add(markdown);
+                outputLength += markdown.length();
+            }
+            if (event.shouldCommit()) {
+                event.inputLength = input.length();
+                event.outputLength = outputLength;
+                event.nodeCount = context.nodeCount;
+                event.commit();
+            }
+            return results;
+        } finally {
+            context.close();
+        }
+    }
+
+    /**
+     * Node of an element of the converted tree, with its ancestors up to the given node, so that
+     * it knows whether it is inside code
+     */
+    private static CopyNode inPlace(CopyNode root, Element element) {
+        Element parent = element.parent();
+        return new CopyNode(element, parent == root.element ? root : inPlace(root, parent));
+    }
+
+    /**
+     * Converts a W3C DOM node, for example an XHTML document read by an XML parser, to Markdown.
+     * <p>
+     * The tree is copied node by node into the converter's own model, without serializing it to
+     * HTML and parsing it again. Documents and document fragments contribute their children,
+     * comments and processing instructions are ignored.
+     *
+     * @param input node to be converted. It is not modified
+     * @return markdown text
+     */
+    public String convert(org.w3c.dom.Node input) {
+        return convert(() -> {
+            ConversionPhaseEvent parseEvent = ConversionPhaseEvent.start(ConversionPhaseEvent.PARSE);
+            Element root = new W3cDomImporter().importRoot(input);
+            parseEvent.finish();
+            return traverse(new CopyNode(root));
+        }, -1, null);
+    }
+
+    /**
+     * Converts the children of the element that the parser returns. The parser runs once the
+     * limits of the conversion apply, so parsing counts towards the time limit like for a string.
+     * Whitespace is collapsed in place, so the element should not be used afterwards.
+     *
+     * @param parser parses the document and returns the element to convert
+     * @param cancellationToken token checked while converting, or null
+     */
+    String convert(Supplier<Element> parser, CancellationToken cancellationToken) {
+        return convert(() -> {
+            ConversionPhaseEvent parseEvent = ConversionPhaseEvent.start(ConversionPhaseEvent.PARSE);
+            Element root = parser.get();
+            parseEvent.finish();
+            return traverse(new CopyNode(root));
+        }, -1, cancellationToken);
+    }
+
+    /**
+     * Runs a conversion in a fresh context
+     *
+     * @param converter produces the markdown before post processing
+     */
+    private String convert(Supplier<String> converter, long inputLength, CancellationToken cancellationToken) {
+        ConversionEvent event = new ConversionEvent();
+        event.begin();
+        ConversionContext context = ConversionContext.open();
+        context.converter = this;
+        context.limit(options, cancellationToken);
+        try {
+            String result = converter.get();
+            ConversionPhaseEvent postProcessEvent = ConversionPhaseEvent.start(ConversionPhaseEvent.POST_PROCESS);
+            String markdown = postProcess(result);
+            postProcessEvent.finish();
+            if (event.shouldCommit()) {
+                event.inputLength = inputLength;
+                event.outputLength = markdown.length();
+                event.nodeCount = context.nodeCount;
+                event.commit();
+            }
+            return markdown;
+        } finally {
+            context.close();
+        }
+    }
+
+    private String traverse(CopyNode root) {
+        ConversionContext context = ConversionContext.current();
+        context.stopCountingNodes();
+        if (isMemoized(context)) {
+            context.fingerprints = memo.fingerprint(root.element, options);
+        }
+        ConversionPhaseEvent traversalEvent = ConversionPhaseEvent.start(ConversionPhaseEvent.TRAVERSAL);
+        String result = process(root);
+        traversalEvent.finish();
+        return result;
+    }
+
+    private boolean isMemoized(ConversionContext context) {
+        return memo != null && !context.isOutputLimited() && context.blocks == null
+                && !(options.linkStyle == LinkStyle.REFERENCED && options.linkReferenceStyle == LinkReferenceStyle.DEFAULT);
+    }
+
+    private void checkInputLength(String input) {
+        checkInputLength(input.length());
+    }
+
+    /**
+     * @param length number of characters of the input
+     * @throws ConversionAbortedException if the input is longer than the options allow
+     */
+    void checkInputLength(long length) {
+        if (options.maxInputChars > 0 && length > options.maxInputChars) {
+            throw new ConversionAbortedException(ConversionAbortedException.Reason.INPUT_TOO_LARGE,
+                    "Input has more than " + options.maxInputChars + " characters");
+        }
+    }
+
+    /**
+     * Input without markup or character references parses to a single text node, so it is
+     * collapsed and escaped directly. Null characters are left to the parser, which drops them.
+     */
+    private static boolean isPlainText(String input) {
+        for (int i = 0; i < input.length(); i++) {
+            char c = input.charAt(i);
+            if (c == '<' || c == '&' || c == '\0') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String convertPlainText(String input) {
+        String text = WhitespaceCollapser.collapseText(input);
+        if (text.isEmpty()) {
+            return text;
+        }
+        ConversionContext context = ConversionContext.current();
+        context.nodeCount++;
+        return escape(context.fitToBudget(text));
+    }
+
+    /**
+     * Converts the HTML string and writes the markdown to the channel encoded as UTF-8.
+     * <p>
+     * Top-level blocks are encoded as they are converted into pooled direct buffers, so neither
+     * the whole markdown nor a byte array of it is created. A conversion that is aborted leaves
+     * the markdown written so far in the channel.
+     *
+     * @param input HTML to be converted
+     * @param channel destination of the UTF-8 encoded markdown. It is not closed
+     * @throws IOException if writing to the channel fails
+     */
+    public void convert(String input, WritableByteChannel channel) throws IOException {
+        Objects.requireNonNull(channel);
+        write(input, directBufferPool, buffer -> {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        });
+    }
+
+    /**
+     * Converts the HTML string and writes the markdown to the stream encoded as UTF-8.
+     * <p>
+     * Streams take byte arrays, so the markdown is encoded into pooled heap buffers that are
+     * written directly.
+     *
+     * @param input HTML to be converted
+     * @param outputStream destination of the UTF-8 encoded markdown. It is neither flushed nor closed
+     * @throws IOException if writing to the stream fails
+     * @see #convert(String, WritableByteChannel)
+     */
+    public void convert(String input, OutputStream outputStream) throws IOException {
+        Objects.requireNonNull(outputStream);
+        write(input, heapBufferPool, buffer -> {
+            outputStream.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            buffer.position(buffer.limit());
+        });
+    }
+
+    /**
+     * Converts the HTML string progressively, publishing each finished top-level block of markdown
+     * as soon as it is ready.
+     * <p>
+     * Top-level nodes are only converted when the subscriber signals demand, on the common
+     * {@link ForkJoinPool}. Reference-link definitions are published in the last chunk.
+     * Concatenating all chunks gives the same result as {@link #convert(String)}.
+     *
+     * @param input HTML to be converted
+     * @return a publisher that converts the input once per subscriber
+     */
+    public Flow.Publisher<String> publish(String input) {
+        return publish(input, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Same as {@link #publish(String)} but converts on the given executor.
+     *
+     * @param input HTML to be converted
+     * @param executor executor on which the conversion and the subscriber signals run
+     * @return a publisher that converts the input once per subscriber
+     */
+    public Flow.Publisher<String> publish(String input, Executor executor) {
+        Objects.requireNonNull(input);
+        Objects.requireNonNull(executor);
+        checkInputLength(input);
+        return new MarkdownPublisher(() -> new ProgressiveConversion(input), executor);
     }
 
     private Rules rules;
-    private final Options options;
-    private List<String> references = null;
+    final Options options;
+    private final SubtreeMemo memo;
+    private ByteBufferPool directBufferPool;
+    private ByteBufferPool heapBufferPool;
 
     private void setUp() {
-        rules = new Rules();
+        rules = Rules.forOptions(options);
+        directBufferPool = ByteBufferPool.shared(options.outputBufferSize, options.outputBufferPoolSize, true);
+        heapBufferPool = ByteBufferPool.shared(options.outputBufferSize, options.outputBufferPoolSize, false);
+    }
+
+    /**
+     * Destination of encoded markdown
+     */
+    private interface ByteSink {
+        /**
+         * Writes the remaining bytes of the buffer
+         */
+        void write(ByteBuffer buffer) throws IOException;
+    }
+
+    /**
+     * Converts the input progressively and encodes each chunk as it comes. The buffer is only
+     * handed to the sink when it is full and at the end.
+     */
+    private void write(String input, ByteBufferPool pool, ByteSink sink) throws IOException {
+        checkInputLength(input);
+        ProgressiveConversion conversion = new ProgressiveConversion(input);
+        CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        ByteBuffer buffer = pool.acquire();
+        try {
+            CharBuffer chars = CharBuffer.wrap("");
+            for (String chunk = conversion.next(); chunk != null; chunk = conversion.next()) {
+                // A surrogate pair split between chunks is encoded with the next chunk
+                chars = CharBuffer.wrap(chars.hasRemaining() ? chars + chunk : chunk);
+                encode(encoder, chars, buffer, false, sink);
+            }
+            encode(encoder, chars, buffer, true, sink);
+            while (encoder.flush(buffer)
+                    .isOverflow()) {
+                drain(buffer, sink);
+            }
+            drain(buffer, sink);
+        } finally {
+            pool.release(buffer);
+        }
+    }
+
+    private static void encode(CharsetEncoder encoder, CharBuffer chars, ByteBuffer buffer, boolean endOfInput,
+            ByteSink sink) throws IOException {
+        while (encoder.encode(chars, buffer, endOfInput)
+                .isOverflow()) {
+            drain(buffer, sink);
+        }
+    }
+
+    private static void drain(ByteBuffer buffer, ByteSink sink) throws IOException {
+        buffer.flip();
+        sink.write(buffer);
+        buffer.clear();
+    }
+
+    /**
+     * Converts the root children one at a time. Output is only handed out once no later node can
+     * change it: trailing whitespace is held back because joining the next block or the final
+     * trimming may still rewrite it.
+     */
+    class ProgressiveConversion implements MarkdownPublisher.ChunkSource {
+        private final String input;
+        private final ConversionContext context = new ConversionContext();
+        private final ConversionEvent event = new ConversionEvent();
+        private CopyNode root = null;
+        private long outputLength = 0;
+        private int index = 0;
+        private String pending = "";
+        private boolean emitted = false;
+        private boolean finished = false;
+
+        ProgressiveConversion(String input) {
+            this.input = input;
+        }
+
+        @Override
+        public String next() {
+            context.activate();
+            try {
+                if (root == null) {
+                    event.begin();
+                    // Limits apply from the first request on
+                    context.converter = CopyDown.this;
+                    context.limit(options, null);
+                    root = new CopyNode(input);
+                    context.stopCountingNodes();
+                }
+                List<Node> children = root.element.childNodes();
+                while (index < children.size() && !context.isOutputExhausted()) {
+                    Node child = children.get(index++);
+                    if (child instanceof WhitespaceCollapser.RemovedNode) {
+                        continue;
+                    }
+                    pending = join(pending, processChild(root, child));
+                    String chunk = takeStable();
+                    if (!chunk.isEmpty()) {
+                        outputLength += chunk.length();
+                        return chunk;
+                    }
+                }
+                if (finished) {
+                    return null;
+                }
+                finished = true;
+                String last = appendRules(pending);
+                if (!emitted) {
+                    last = leadingLineBreaksPattern.matcher(last)
+                            .replaceAll("");
+                }
+                last = trailingWhitespacePattern.matcher(last)
+                        .replaceAll("");
+                if (event.shouldCommit()) {
+                    event.inputLength = input.length();
+                    event.outputLength = outputLength + last.length();
+                    event.nodeCount = context.nodeCount;
+                    event.commit();
+                }
+                return last.isEmpty() ? null : last;
+            } finally {
+                context.deactivate();
+            }
+        }
+
+        private String takeStable() {
+            int end = pending.length();
+            while (end > 0 && Character.isWhitespace(pending.charAt(end - 1))) {
+                end--;
+            }
+            String stable = pending.substring(0, end);
+            pending = pending.substring(end);
+            if (!emitted) {
+                stable = leadingLineBreaksPattern.matcher(stable)
+                        .replaceAll("");
+            }
+            emitted = emitted || !stable.isEmpty();
+            return stable;
+        }
     }
 
     private static class Escape {
-        String pattern;
-        String replace;
+        final Pattern pattern;
+        final String replace;
+        // Character contained in every match, text without it is skipped without running the pattern
+        final char trigger;
 
-        public Escape(String pattern, String replace) {
-            this.pattern = pattern;
+        public Escape(String pattern, String replace, char trigger) {
+            this.pattern = Pattern.compile(pattern);
             this.replace = replace;
+            this.trigger = trigger;
         }
     }
 
-    private final List<Escape> escapes = Arrays.asList(new Escape("\\\\", "\\\\\\\\"), new Escape("\\*", "\\\\*"),
-            new Escape("^-", "\\\\-"), new Escape("^\\+ ", "\\\\+ "), new Escape("^(=+)", "\\\\$1"),
-            new Escape("^(#{1,6}) ", "\\\\$1 "), new Escape("`", "\\\\`"), new Escape("^~~~", "\\\\~~~"),
-            new Escape("\\[", "\\\\["), new Escape("\\]", "\\\\]"), new Escape("^>", "\\\\>"), new Escape("_", "\\\\_"),
-            new Escape("^(\\d+)\\. ", "$1\\\\. "));
+    private static final List<Escape> escapes = Arrays.asList(new Escape("\\\\", "\\\\\\\\", '\\'),
+            new Escape("\\*", "\\\\*", '*'), new Escape("^-", "\\\\-", '-'), new Escape("^\\+ ", "\\\\+ ", '+'),
+            new Escape("^(=+)", "\\\\$1", '='), new Escape("^(#{1,6}) ", "\\\\$1 ", '#'), new Escape("`", "\\\\`", '`'),
+            new Escape("^~~~", "\\\\~~~", '~'), new Escape("\\[", "\\\\[", '['), new Escape("\\]", "\\\\]", ']'),
+            new Escape("^>", "\\\\>", '>'), new Escape("_", "\\\\_", '_'), new Escape("^(\\d+)\\. ", "$1\\\\. ", '.'));
 
     private String postProcess(String output) {
+        output = appendRules(output);
+        output = leadingLineBreaksPattern.matcher(output)
+                .replaceAll("");
+        return trailingWhitespacePattern.matcher(output)
+                .replaceAll("");
+    }
+
+    private String appendRules(String output) {
         for (Rule rule : rules.rules) {
             if (rule.getAppend() != null) {
                 output = join(output, rule.getAppend()
                         .get());
             }
         }
-        return output.replaceAll("^[\\t\\n\\r]+", "")
-                .replaceAll("[\\t\\r\\n\\s]+$", "");
+        return output;
     }
 
     private String process(CopyNode node) {
-        String result = "";
+        ConversionContext context = ConversionContext.current();
+        StringBuilder result = new StringBuilder();
         for (Node child : node.element.childNodes()) {
-            CopyNode copyNodeChild = new CopyNode(child, node);
-            String replacement = "";
-            if (NodeUtils.isNodeType3(child)) {
-                // TODO it should be child.nodeValue
-                replacement = copyNodeChild.isCode() ? ((TextNode) child).text() : escape(((TextNode) child).text());
-            } else if (NodeUtils.isNodeType1(child)) {
-                replacement = replacementForNode(copyNodeChild);
+            if (context.isOutputExhausted()) {
+                break;
             }
-            result = join(result, replacement);
+            // Joining even empty markdown trims the line breaks before it, which a removed node
+            // must not do
+            if (child instanceof WhitespaceCollapser.RemovedNode) {
+                continue;
+            }
+            context.checkpoint();
+            join(result, processChild(node, child));
         }
-        return result;
+        return result.toString();
+    }
+
+    private String processChild(CopyNode node, Node child) {
+        ConversionContext context = ConversionContext.current();
+        context.nodeCount++;
+        if (NodeUtils.isNodeType3(child)) {
+            // TODO it should be child.nodeValue
+            String text = context.fitToBudget(((TextNode) child).text());
+            // A text node is code exactly when its parent is
+            String markdown = node.isCode() ? text : escape(text);
+            context.consumeOutput(markdown.length());
+            return markdown;
+        } else if (NodeUtils.isNodeType1(child)) {
+            return replacementForNode(new CopyNode(child, node));
+        }
+        return "";
     }
 
     private String replacementForNode(CopyNode node) {
+        return replacementForNode(node, true);
+    }
+
+    /**
+     * @param flanked whether whitespace at the ends of the content is moved outside of the
+     * markup, or dropped like at the ends of a document
+     */
+    private String replacementForNode(CopyNode node, boolean flanked) {
+        ConversionContext context = ConversionContext.current();
+        long budget = context.outputBudget;
+        SubtreeMemo.Key memoKey = context.fingerprints == null ? null : context.fingerprints.get(node.element);
+        SubtreeMemo.Entry memoized = null;
+        if (memoKey != null) {
+            memoKey = memoKey.inCode(node.isCode());
+            memoized = memo.get(memoKey);
+            if (memoized != null) {
+                // Rules check the blank state of the element, which would otherwise inspect the whole subtree
+                context.blankElements.put(node.element, memoized.blank);
+            }
+        }
         Rule rule = rules.findRule(node.element);
-        String content = process(node);
+        MarkdownBlock.Type blockType = context.blocks == null ? null : rule.getBlockType();
+        boolean outermostBlock = blockType != null && context.blockDepth++ == 0;
+        int markedBlocks = context.blocks == null ? 0 : context.blocks.size();
+        String content;
+        if (rule.isContentIgnored()) {
+            content = "";
+        } else if (memoized != null) {
+            content = memoized.content;
+            context.references.addAll(memoized.references);
+        } else if (memoKey != null) {
+            int referenceCount = context.references.size();
+            content = process(node);
+            List<String> references = List.copyOf(context.references.subList(referenceCount, context.references.size()));
+            memo.offer(memoKey, new SubtreeMemo.Entry(content, CopyNode.isBlank(node.element), references));
+        } else {
+            content = process(node);
+        }
         CopyNode.FlankingWhiteSpaces flankingWhiteSpaces = node.flankingWhitespace();
         if (!flankingWhiteSpaces.getLeading()
                 .isEmpty() || !flankingWhiteSpaces.getTrailing()
                 .isEmpty()) {
             content = content.trim();
         }
-        return flankingWhiteSpaces.getLeading() + rule.getReplacement()
-                .apply(content, node.element) + flankingWhiteSpaces.getTrailing();
+        context.replacementBudget = budget;
+        CopyNode replacedNode = context.replacedNode;
+        context.replacedNode = node;
+        String replacement = rule.getReplacement()
+                .apply(content, node.element);
+        context.replacedNode = replacedNode;
+        if (flanked) {
+            replacement = flankingWhiteSpaces.getLeading() + replacement + flankingWhiteSpaces.getTrailing();
+        }
+        if (context.isOutputLimited()) {
+            // The markup of the rule counts too, the content was already counted while converting it.
+            // Marks of the blocks inside do not
+            int marks = context.blocks == null ? 0 : BlockSplitter.MARK_LENGTH * (context.blocks.size() - markedBlocks);
+            context.outputBudget = budget - replacement.length() + marks;
+        }
+        if (blockType != null) {
+            context.blockDepth--;
+            if (outermostBlock) {
+                replacement = context.blocks.add(blockType, replacement, node.element, content);
+            }
+        }
+        return replacement;
     }
 
-    private static final Pattern leadingNewLinePattern = Pattern.compile("^(\n*)");
-    private static final Pattern trailingNewLinePattern = Pattern.compile("(\n*)$");
+    private static final Pattern leadingLineBreaksPattern = Pattern.compile("^[\\t\\n\\r]+");
+    private static final Pattern trailingWhitespacePattern = Pattern.compile("[\\t\\r\\n\\s]+$");
+    private static final Pattern surroundingNewLinesPattern = Pattern.compile("^\n+|\n+$");
+    private static final Pattern lineStartPattern = Pattern.compile("(?m)^");
+    private static final Pattern leadingNewLinesPattern = Pattern.compile("^\n+");
+    private static final Pattern trailingNewLinesPattern = Pattern.compile("\n+$");
+    private static final Pattern attributeNewLinesPattern = Pattern.compile("(\n+\\s*)+");
+    private static final Pattern languagePattern = Pattern.compile("language-(\\S+)");
+    private static final Pattern leadingBacktickPattern = Pattern.compile("^`");
+    private static final Pattern trailingBacktickPattern = Pattern.compile("`$");
 
     private String join(String string1, String string2) {
-        Matcher trailingMatcher = trailingNewLinePattern.matcher(string1);
-        boolean hasTrailingMatch = trailingMatcher.find();
-
-        Matcher leadingMatcher = leadingNewLinePattern.matcher(string2);
-        boolean hasLeadingMatch = leadingMatcher.find();
+        StringBuilder builder = new StringBuilder(string1.length() + string2.length() + 2).append(string1);
+        join(builder, string2);
+        return builder.toString();
+    }
 
-        int trailingLength = hasTrailingMatch ? trailingMatcher.group().length() : 0;
-        int leadingLength = hasLeadingMatch ? leadingMatcher.group().length() : 0;
+    /**
+     * Appends string2 to the builder, replacing the new lines where they meet by as many as the
+     * longer side had, but at most two. Works in place so that joining the children of a node is
+     * linear in the size of the output instead of quadratic.
+     */
+    private void join(StringBuilder builder, String string2) {
+        int trailingLength = 0;
+        while (trailingLength < builder.length() && builder.charAt(builder.length() - 1 - trailingLength) == '\n') {
+            trailingLength++;
+        }
+        int leadingLength = 0;
+        while (leadingLength < string2.length() && string2.charAt(leadingLength) == '\n') {
+            leadingLength++;
+        }
 
         int nNewLines = Integer.min(2, Integer.max(leadingLength, trailingLength));
-        String newLineJoin = String.join("", Collections.nCopies(nNewLines, "\n"));
-
-        return trailingMatcher.replaceAll("") + newLineJoin + leadingMatcher.replaceAll("");
+        builder.setLength(builder.length() - trailingLength);
+        for (int i = 0; i < nNewLines; i++) {
+            builder.append('\n');
+        }
+        builder.append(string2, leadingLength, string2.length());
     }
 
 
     private String escape(String string) {
         for (Escape escape : escapes) {
-            string = string.replaceAll(escape.pattern, escape.replace);
+            if (string.indexOf(escape.trigger) >= 0) {
+                string = escape.pattern.matcher(string)
+                        .replaceAll(escape.replace);
+            }
         }
         return string;
     }
 
-    class Rules {
+    /**
+     * Rules of a set of options. They only depend on the options, so they are built once and
+     * shared by every converter with equal options. Choices that the options settle are made
+     * when building the rules instead of for every node.
+     */
+    static class Rules {
+        // Options vary mostly in their limits, which the rules do not depend on, so few sets of rules are built
+        private static final int MAX_CACHED_RULES = 64;
+        private static final Map<Options, Rules> CACHE = new ConcurrentHashMap<>();
+
+        private static final Evaluator TABLE_ROW = QueryParser.parse("tr");
+        private static final Evaluator HEADER_ROW = QueryParser.parse("thead tr");
+        private static final Evaluator BODY_ROW = QueryParser.parse("tbody tr");
+        private static final Evaluator TABLE_CELL = QueryParser.parse("td, th");
+
         private final List<Rule> rules;
+        private final TableStyle tableStyle;
 
-        public Rules() {
+        static Rules forOptions(Options options) {
+            Options key = options.withoutLimits();
+            Rules rules = CACHE.get(key);
+            if (rules == null) {
+                if (CACHE.size() >= MAX_CACHED_RULES) {
+                    CACHE.clear();
+                }
+                rules = CACHE.computeIfAbsent(key, Rules::new);
+            }
+            return rules;
+        }
+
+        private Rules(Options options) {
             this.rules = new ArrayList<>();
+            this.tableStyle = options.tableStyle;
 
             addRule("blankReplacement", new Rule(CopyNode::isBlank,
                     (content, element) -> CopyNode.isBlock(element) ? "\n\n" : ""));
-            addRule("paragraph", new Rule("p", (content, element) -> "\n\n" + content + "\n\n"));
-            addRule("br", new Rule("br", (content, element) -> options.br + "\n"));
+            addRule("paragraph", new Rule("p", (content, element) -> "\n\n" + content + "\n\n"),
+                    MarkdownBlock.Type.PARAGRAPH);
+            String br = options.br + "\n";
+            addRule("br", new Rule("br", (content, element) -> br));
+            // Setext headings only exist for the first two levels
+            int setextLevels = options.headingStyle == HeadingStyle.SETEXT ? 2 : 0;
+            String[] headingPrefixes = new String[7];
+            for (int level = 1; level <= 6; level++) {
+                headingPrefixes[level] = "\n\n" + "#".repeat(level) + " ";
+            }
             addRule("heading", new Rule(new String[] { "h1", "h2", "h3", "h4", "h5", "h6" }, (content, element) -> {
-                int hLevel = Integer.parseInt(element.nodeName()
-                        .substring(1, 2));
-                if (options.headingStyle == HeadingStyle.SETEXT && hLevel < 3) {
-                    String underline = String.join("", Collections.nCopies(content.length(), hLevel == 1 ? "=" : "-"));
+                int hLevel = element.nodeName()
+                        .charAt(1) - '0';
+                if (hLevel <= setextLevels) {
+                    String underline = (hLevel == 1 ? "=" : "-").repeat(content.length());
                     return "\n\n" + content + "\n" + underline + "\n\n";
                 } else {
-                    return "\n\n" + String.join("", Collections.nCopies(hLevel, "#")) + " " + content + "\n\n";
+                    return headingPrefixes[hLevel] + content + "\n\n";
                 }
-            }));
+            }), MarkdownBlock.Type.HEADING);
             addRule("blockquote", new Rule("blockquote", (content, element) -> {
-                content = content.replaceAll("^\n+|\n+$", "");
-                content = content.replaceAll("(?m)^", "> ");
+                content = surroundingNewLinesPattern.matcher(content)
+                        .replaceAll("");
+                content = lineStartPattern.matcher(content)
+                        .replaceAll("> ");
                 return "\n\n" + content + "\n\n";
-            }));
-            addRule("table", new Rule("table", (content, element) -> convertTable((Element) element)));
+            }), MarkdownBlock.Type.BLOCKQUOTE);
+            Rule tableRule = new Rule("table", (content, element) -> convertTable((Element) element));
+            // Cells are converted by convertTable itself
+            tableRule.setContentIgnored(true);
+            addRule("table", tableRule, MarkdownBlock.Type.TABLE);
             addRule("list", new Rule(new String[] { "ul", "ol" }, (content, element) -> {
                 Element parent = (Element) element.parentNode();
                 if (Objects.requireNonNull(parent)
                         .nodeName()
-                        .equals("li") && parent.child(parent.childrenSize() - 1) == element) {
+                        .equals("li") && ConversionContext.current()
+                        .isLastElement((Element) element)) {
                     return "\n" + content;
                 } else {
                     return "\n\n" + content + "\n\n";
                 }
-            }));
+            }), MarkdownBlock.Type.LIST);
+            String bulletPrefix = options.bulletListMaker + "   ";
             addRule("listItem", new Rule("li", (content, element) -> {
-                content = content.replaceAll("^\n+", "") // remove leading new lines
-                        .replaceAll("\n+$", "\n") // remove trailing new lines with just a single one
-                        .replaceAll("(?m)\n", "\n    "); // indent
-                String prefix = options.bulletListMaker + "   ";
+                content = leadingNewLinesPattern.matcher(content)
+                        .replaceAll(""); // remove leading new lines
+                content = trailingNewLinesPattern.matcher(content)
+                        .replaceAll("\n") // remove trailing new lines with just a single one
+                        .replace("\n", "\n    "); // indent
+                String prefix = bulletPrefix;
                 Element parent = (Element) element.parentNode();
                 if (Objects.requireNonNull(parent)
                         .nodeName()
                         .equals("ol")) {
-                    String start = parent.attr("start");
-                    List<Element> children = parent.children();
-
-                    int index = -1;
-                    for (int i = 0; i < children.size(); i++) {
-                        if (children.get(i) == element) {
-                            index = i;
-                            break;
-                        }
-                    }
-                    int parsedStart = 1;
-                    if (!start.isEmpty()) {
-                        try {
-                            parsedStart = Integer.parseInt(start);
-                        } catch (NumberFormatException e) {
-                            throw new NumberFormatException("Unable to parse " + start + " as an integer");
-                        }
-                    }
-                    prefix = parsedStart + index + ".  ";
+                    ConversionContext context = ConversionContext.current();
+                    prefix = context.listStart(parent) + context.elementIndex((Element) element) + ".  ";
                 }
-                return prefix + content + (element.nextSibling() != null && !Pattern.compile("\n$")
-                        .matcher(content)
-                        .find() ? "\n" : "");
+                return prefix + content + (NodeUtils.nextSibling(element) != null && !content.endsWith("\n") ? "\n" : "");
             }));
-            addRule("indentedCodeBlock", new Rule((element) -> options.codeBlockStyle == CodeBlockStyle.INDENTED && element.nodeName()
-                    .equals("pre") && element.childNodeSize() > 0 && element.childNode(0)
-                    .nodeName()
-                    .equals("code"), (content, element) -> {
-                // TODO check textContent
-                return "\n\n    " + ((Element) element.childNode(0)).wholeText()
-                        .replaceAll("\n", "\n    ");
-            }));
-            addRule("fencedCodeBock", new Rule((element) -> options.codeBlockStyle == CodeBlockStyle.FENCED && element.nodeName()
-                    .equals("pre") && element.childNodeSize() > 0 && element.childNode(0)
-                    .nodeName()
-                    .equals("code"), (content, element) -> {
-                String childClass = element.childNode(0)
-                        .attr("class");
-                Matcher languageMatcher = Pattern.compile("language-(\\S+)")
-                        .matcher(childClass);
-                String language = "";
-                if (languageMatcher.find()) {
-                    language = languageMatcher.group(1);
-                }
+            if (options.codeBlockStyle == CodeBlockStyle.FENCED) {
+                String fenceChar = options.fence.substring(0, 1);
+                Pattern fencePattern = Pattern.compile("(?m)^(" + fenceChar + "{3,})");
+                addRule("fencedCodeBock", new Rule(Rules::isCodeBlock, (content, element) -> {
+                    String childClass = element.childNode(0)
+                            .attr("class");
+                    Matcher languageMatcher = languagePattern.matcher(childClass);
+                    String language = "";
+                    if (languageMatcher.find()) {
+                        language = languageMatcher.group(1);
+                    }
 
-                String code;
-                if (element.childNode(0) instanceof Element) {
-                    code = ((Element) element.childNode(0)).wholeText();
-                } else {
-                    code = element.childNode(0)
-                            .outerHtml();
-                }
+                    String code;
+                    if (element.childNode(0) instanceof Element) {
+                        code = ((Element) element.childNode(0)).wholeText();
+                    } else {
+                        code = element.childNode(0)
+                                .outerHtml();
+                    }
+                    code = fitCodeToBudget(code);
 
-                String fenceChar = options.fence.substring(0, 1);
-                int fenceSize = 3;
-                Matcher fenceMatcher = Pattern.compile("(?m)^(" + fenceChar + "{3,})")
-                        .matcher(content);
-                while (fenceMatcher.find()) {
-                    String group = fenceMatcher.group(1);
-                    fenceSize = Math.max(group.length() + 1, fenceSize);
-                }
-                String fence = String.join("", Collections.nCopies(fenceSize, fenceChar));
-                if (!code.isEmpty() && code.charAt(code.length() - 1) == '\n') {
-                    code = code.substring(0, code.length() - 1);
-                }
-                return ("\n\n" + fence + language + "\n" + code + "\n" + fence + "\n\n");
-            }));
+                    int fenceSize = 3;
+                    Matcher fenceMatcher = fencePattern.matcher(content);
+                    while (fenceMatcher.find()) {
+                        String group = fenceMatcher.group(1);
+                        fenceSize = Math.max(group.length() + 1, fenceSize);
+                    }
+                    String fence = fenceChar.repeat(fenceSize);
+                    if (!code.isEmpty() && code.charAt(code.length() - 1) == '\n') {
+                        code = code.substring(0, code.length() - 1);
+                    }
+                    return ("\n\n" + fence + language + "\n" + code + "\n" + fence + "\n\n");
+                }), MarkdownBlock.Type.CODE_BLOCK);
+            } else {
+                addRule("indentedCodeBlock", new Rule(Rules::isCodeBlock, (content, element) -> {
+                    // TODO check textContent
+                    return "\n\n    " + fitCodeToBudget(((Element) element.childNode(0)).wholeText())
+                            .replace("\n", "\n    ");
+                }), MarkdownBlock.Type.CODE_BLOCK);
+            }
 
-            addRule("horizontalRule", new Rule("hr", (content, element) -> "\n\n" + options.hr + "\n\n"));
-            addRule("inlineLink", new Rule((element) -> options.linkStyle == LinkStyle.INLINED && element.nodeName()
-                    .equals("a") && !element.attr("href")
-                    .isEmpty(), (content, element) -> {
-                String href = element.attr("href");
-                String title = cleanAttribute(element.attr("title"));
-                if (!title.isEmpty()) {
-                    title = " \"" + title + "\"";
-                }
-                return "[" + content + "](" + href + title + ")";
-            }));
-            addRule("referenceLink", new Rule((element) -> options.linkStyle == LinkStyle.REFERENCED && element.nodeName()
-                    .equals("a") && !element.attr("href")
-                    .isEmpty(), (content, element) -> {
-                String href = element.attr("href");
-                String title = cleanAttribute(element.attr("title"));
-                if (!title.isEmpty()) {
-                    title = " \"" + title + "\"";
-                }
-                String replacement;
-                String reference;
-                switch (options.linkReferenceStyle) {
-                    case COLLAPSED:
-                        replacement = "[" + content + "][]";
-                        reference = "[" + content + "]: " + href + title;
-                        break;
-                    case SHORTCUT:
-                        replacement = "[" + content + "]";
-                        reference = "[" + content + "]: " + href + title;
-                        break;
-                    case DEFAULT:
-                    default:
-                        int id = references.size() + 1;
-                        replacement = "[" + content + "][" + id + "]";
-                        reference = "[" + id + "]: " + href + title;
-                }
-                references.add(reference);
-                return replacement;
-            }, () -> {
-                String referenceString = "";
-                if (!references.isEmpty()) {
-                    referenceString = "\n\n" + String.join("\n", references) + "\n\n";
-                }
-                return referenceString;
-            }));
+            String hr = "\n\n" + options.hr + "\n\n";
+            addRule("horizontalRule", new Rule("hr", (content, element) -> hr),
+                    MarkdownBlock.Type.THEMATIC_BREAK);
+            if (options.linkStyle == LinkStyle.REFERENCED) {
+                LinkReferenceStyle linkReferenceStyle = options.linkReferenceStyle;
+                addRule("referenceLink", new Rule(Rules::isLink, (content, element) -> {
+                    String href = element.attr("href");
+                    String title = cleanAttribute(element.attr("title"));
+                    if (!title.isEmpty()) {
+                        title = " \"" + title + "\"";
+                    }
+                    String replacement;
+                    String reference;
+                    switch (linkReferenceStyle) {
+                        case COLLAPSED:
+                            replacement = "[" + content + "][]";
+                            reference = "[" + content + "]: " + href + title;
+                            break;
+                        case SHORTCUT:
+                            replacement = "[" + content + "]";
+                            reference = "[" + content + "]: " + href + title;
+                            break;
+                        case DEFAULT:
+                        default:
+                            int id = ConversionContext.current().references.size() + 1;
+                            replacement = "[" + content + "][" + id + "]";
+                            reference = "[" + id + "]: " + href + title;
+                    }
+                    ConversionContext.current().references.add(reference);
+                    return replacement;
+                }, () -> {
+                    List<String> references = ConversionContext.current().references;
+                    String referenceString = "";
+                    if (!references.isEmpty()) {
+                        referenceString = "\n\n" + String.join("\n", references) + "\n\n";
+                    }
+                    return referenceString;
+                }));
+            } else {
+                addRule("inlineLink", new Rule(Rules::isLink, (content, element) -> {
+                    String href = element.attr("href");
+                    String title = cleanAttribute(element.attr("title"));
+                    if (!title.isEmpty()) {
+                        title = " \"" + title + "\"";
+                    }
+                    return "[" + content + "](" + href + title + ")";
+                }));
+            }
+            String emDelimiter = options.emDelimiter;
             addRule("emphasis", new Rule(new String[] { "em", "i" }, (content, element) -> {
                 if (content.trim()
                         .isEmpty()) {
                     return "";
                 }
-                return options.emDelimiter + content + options.emDelimiter;
+                return emDelimiter + content + emDelimiter;
             }));
+            String strongDelimiter = options.strongDelimiter;
             addRule("strong", new Rule(new String[] { "strong", "b" }, (content, element) -> {
                 if (content.trim()
                         .isEmpty()) {
                     return "";
                 }
-                return options.strongDelimiter + content + options.strongDelimiter;
+                return strongDelimiter + content + strongDelimiter;
             }));
             addRule("code", new Rule((element) -> {
-                boolean hasSiblings = element.previousSibling() != null || element.nextSibling() != null;
+                boolean hasSiblings = NodeUtils.previousSibling(element) != null || NodeUtils.nextSibling(element) != null;
                 boolean isCodeBlock = Objects.requireNonNull(element.parentNode())
                         .nodeName()
                         .equals("pre") && !hasSiblings;
@@ -317,26 +926,29 @@ public class CopyDown {
                 String delimiter = "`";
                 String leadingSpace = "";
                 String trailingSpace = "";
-                Pattern pattern = Pattern.compile("(?m)(`)+");
-                Matcher matcher = pattern.matcher(content);
-                if (matcher.find()) {
-                    if (Pattern.compile("^`")
-                            .matcher(content)
+                if (content.indexOf('`') >= 0) {
+                    if (leadingBacktickPattern.matcher(content)
                             .find()) {
                         leadingSpace = " ";
                     }
-                    if (Pattern.compile("`$")
-                            .matcher(content)
+                    if (trailingBacktickPattern.matcher(content)
                             .find()) {
                         trailingSpace = " ";
                     }
+                    // One more backtick for every lone backtick, counted in a single pass
                     int counter = 1;
-                    do {
-                        if (delimiter.equals(matcher.group())) {
+                    int runLength = 0;
+                    for (int i = 0; i <= content.length(); i++) {
+                        if (i < content.length() && content.charAt(i) == '`') {
+                            runLength++;
+                            continue;
+                        }
+                        if (runLength == 1) {
                             counter++;
                         }
-                    } while (matcher.find());
-                    delimiter = String.join("", Collections.nCopies(counter, "`"));
+                        runLength = 0;
+                    }
+                    delimiter = "`".repeat(counter);
                 }
                 return delimiter + leadingSpace + content + trailingSpace + delimiter;
             }));
@@ -357,6 +969,19 @@ public class CopyDown {
                     (content, element) -> CopyNode.isBlock(element) ? "\n\n" + content + "\n\n" : content));
         }
 
+        private static boolean isCodeBlock(Node element) {
+            return element.nodeName()
+                    .equals("pre") && element.childNodeSize() > 0 && element.childNode(0)
+                    .nodeName()
+                    .equals("code");
+        }
+
+        private static boolean isLink(Node element) {
+            return element.nodeName()
+                    .equals("a") && !element.attr("href")
+                    .isEmpty();
+        }
+
         public Rule findRule(Node node) {
             for (Rule rule : rules) {
                 if (rule.getFilter()
@@ -372,11 +997,46 @@ public class CopyDown {
             rules.add(rule);
         }
 
+        /**
+         * Adds a rule whose replacement is a block of its own in {@link #convertToBlocks(String)}
+         */
+        private void addRule(String name, Rule rule, MarkdownBlock.Type blockType) {
+            rule.setBlockType(blockType);
+            addRule(name, rule);
+        }
+
+        /**
+         * Code blocks output the whole text of their code element instead of the converted content,
+         * so in a preview it is cut to the budget left before the block.
+         */
+        private String fitCodeToBudget(String code) {
+            ConversionContext context = ConversionContext.current();
+            if (!context.isOutputLimited()) {
+                return code;
+            }
+            return context.fitToBudget(code, context.replacementBudget);
+        }
+
         private String cleanAttribute(String attribute) {
-            return attribute.replaceAll("(\n+\\s*)+", "\n");
+            return attributeNewLinesPattern.matcher(attribute)
+                    .replaceAll("\n");
         }
 
         private String convertTable(Element tableElement) {
+            ConversionPhaseEvent tableEvent = ConversionPhaseEvent.start(ConversionPhaseEvent.TABLE);
+            try {
+                return convertTableRows(tableElement);
+            } finally {
+                tableEvent.finish();
+            }
+        }
+
+        /**
+         * Rows are visited in document order without collecting them, so apart from the markdown
+         * itself the memory of a table does not grow with its rows. Padded tables are visited once
+         * more to measure their columns.
+         */
+        private String convertTableRows(Element tableElement) {
             StringBuilder markdownBuilder = new StringBuilder();
 
             // Process the caption
@@ -386,111 +1046,222 @@ public class CopyDown {
                         .append("\n\n");
             }
 
-            // Determine the header row
-            Element headerRowElement = tableElement.selectFirst("thead tr");
-            List<Element> bodyRowElements;
+            // Determine the header row, the body rows are those of the tbody when there is a thead
+            Element headerRowElement = tableElement.selectFirst(HEADER_ROW);
+            Evaluator bodyRow = BODY_ROW;
             if (headerRowElement == null) {
                 // Fallback: use the first <tr> as header if no thead exists
-                List<Element> allRows = tableElement.select("tr");
-                if (allRows.isEmpty()) {
+                headerRowElement = tableElement.selectFirst(TABLE_ROW);
+                if (headerRowElement == null) {
                     return ""; // Empty table
                 }
-                headerRowElement = allRows.getFirst();
-                bodyRowElements = allRows.size() > 1 ? allRows.subList(1, allRows.size()) : new ArrayList<>();
-            } else {
-                // If <thead> exists, use <tbody> for the body
-                bodyRowElements = tableElement.select("tbody tr");
+                bodyRow = TABLE_ROW;
             }
+            Element headerRow = headerRowElement;
+            Evaluator bodyRows = bodyRow;
 
-            // Process header row into a list of cell strings.
-            List<String> headerRow = processRow(headerRowElement);
-
-            // Process body rows into a nested list of strings
-            List<List<String>> bodyRows = new ArrayList<>();
-            for (Element rowElement : bodyRowElements) {
-                bodyRows.add(processRow(rowElement));
-            }
+            int bodyRowLimit = rowsWithinBudget(tableElement, headerRow, bodyRows);
 
             // Determine the maximum number of columns across header and body
-            int columnCount = headerRow.size();
-            for (List<String> row : bodyRows) {
-                columnCount = Math.max(columnCount, row.size());
-            }
+            int[] columnCount = { cellsOf(headerRow).size() };
+            forEachBodyRow(tableElement, headerRow, bodyRows, bodyRowLimit,
+                    row -> columnCount[0] = Math.max(columnCount[0], cellsOf(row).size()));
 
-            // Combine header and body rows for a single pass computation of max lengths
-            List<List<String>> allRows = new ArrayList<>();
-            allRows.add(headerRow);
-            allRows.addAll(bodyRows);
-
-            int[] maxLengths = computeMaxLengths(allRows, columnCount);
+            // Padded tables need the column widths up front. They are measured in a first pass that only
+            // keeps the lengths, so memory does not grow with the number of rows.
+            int[] maxLengths = null;
+            if (tableStyle == TableStyle.PADDED) {
+                maxLengths = computeMaxLengths(tableElement, headerRow, bodyRows, bodyRowLimit, columnCount[0]);
+            }
+            int[] widths = maxLengths;
 
             // Build header row
-            markdownBuilder.append("|");
-            for (int i = 0; i < columnCount; i++) {
-                String cell = i < headerRow.size() ? headerRow.get(i) : "";
-                int pad = maxLengths[i] - cell.length();
-                markdownBuilder.append(" ")
-                        .append(cell)
-                        .append(" ".repeat(pad + 1))
-                        .append("|");
-            }
-            markdownBuilder.append("\n|");
+            appendRow(markdownBuilder, headerRow, columnCount[0], widths);
             // Build separator row
-            for (int i = 0; i < columnCount; i++) {
+            markdownBuilder.append("|");
+            for (int i = 0; i < columnCount[0]; i++) {
                 markdownBuilder.append(" ")
-                        .append("-".repeat(maxLengths[i]))
+                        .append("-".repeat(widths == null ? 3 : widths[i]))
                         .append(" |");
             }
             markdownBuilder.append("\n");
 
             // Build body rows
-            for (List<String> row : bodyRows) {
-                markdownBuilder.append("|");
-                for (int i = 0; i < columnCount; i++) {
-                    String cell = i < row.size() ? row.get(i) : "";
-                    int pad = maxLengths[i] - cell.length();
-                    markdownBuilder.append(" ")
-                            .append(cell)
-                            .append(" ".repeat(pad))
-                            .append(" |");
+            forEachBodyRow(tableElement, headerRow, bodyRows, bodyRowLimit,
+                    row -> appendRow(markdownBuilder, row, columnCount[0], widths));
+
+            return markdownBuilder.toString();
+        }
+
+        /**
+         * Visits the body rows of the table in document order, up to the limit
+         */
+        private static void forEachBodyRow(Element table, Element headerRow, Evaluator bodyRow, int limit,
+                Consumer<Element> action) {
+            int[] visited = { 0 };
+            forEachBodyRow(table, headerRow, bodyRow, row -> {
+                if (visited[0] >= limit) {
+                    return false;
                 }
-                markdownBuilder.append("\n");
+                visited[0]++;
+                action.accept(row);
+                return true;
+            });
+        }
+
+        /**
+         * Visits the body rows of the table in document order, until the action returns false
+         */
+        private static void forEachBodyRow(Element table, Element headerRow, Evaluator bodyRow,
+                Predicate<Element> action) {
+            NodeTraversor.filter(new NodeFilter() {
+                @Override
+                public FilterResult head(Node node, int depth) {
+                    if (node instanceof Element && node != headerRow && bodyRow.matches(table, (Element) node)
+                            && !action.test((Element) node)) {
+                        return FilterResult.STOP;
+                    }
+                    return FilterResult.CONTINUE;
+                }
+
+                @Override
+                public FilterResult tail(Node node, int depth) {
+                    return FilterResult.CONTINUE;
+                }
+            }, table);
+        }
+
+        /**
+         * Helper method that converts a row (either header or body) and appends it to the builder.
+         * Cells are padded to the given widths, or left unpadded if there are none.
+         */
+        private void appendRow(StringBuilder markdownBuilder, Element row, int columnCount, int[] widths) {
+            Elements cells = cellsOf(row);
+            markdownBuilder.append("|");
+            for (int i = 0; i < columnCount; i++) {
+                String cell = i < cells.size() ? convertCell(cells.get(i)) : "";
+                markdownBuilder.append(" ")
+                        .append(cell);
+                if (widths != null) {
+                    markdownBuilder.append(" ".repeat(widths[i] - cell.length()));
+                }
+                markdownBuilder.append(" |");
             }
+            markdownBuilder.append("\n");
+            consumeRowMarkup(cells);
+        }
 
-            return markdownBuilder.toString();
+        /**
+         * Counts the separators of a row against the output budget, the text of the cells is
+         * counted when converting them
+         */
+        private void consumeRowMarkup(Elements cells) {
+            ConversionContext.current()
+                    .consumeOutput(3L * cells.size() + 2);
+        }
+
+        private Elements cellsOf(Element row) {
+            return row.select(TABLE_CELL);
         }
 
         /**
-         * Helper method that processes a row (either header or body) and returns a list
-         * of Markdown-converted cell contents.
+         * Converts the content of a cell where it is, its whitespace was collapsed with the
+         * document or, in a preview, before its rows were counted. The cell keeps the ancestry it has in the document, so rules see
+         * the same parents as anywhere else.
          */
-        private List<String> processRow(Element row) {
-            List<String> rowContent = new ArrayList<>();
-            Elements cells = row.select("td, th");
-            for (Element cell : cells) {
-                // Process each cell with inline conversion.
-                String cellContent = process(new CopyNode(cell.outerHtml())).trim();
-                rowContent.add(cellContent);
+        private String convertCell(Element cell) {
+            ConversionContext context = ConversionContext.current();
+            return context.converter
+                    .process(inPlace(context.replacedNode, cell))
+                    .trim();
+        }
+
+        private static boolean isInsideCell(Element table) {
+            for (Element parent = table.parent(); parent != null; parent = parent.parent()) {
+                if (TABLE_CELL.matches(parent, parent)) {
+                    return true;
+                }
             }
-            return rowContent;
+            return false;
         }
 
         /**
          * Helper method that computes the maximum length for each column across all rows.
-         * A minimum width of 3 is enforced for each column.
+         * A minimum width of 3 is enforced for each column. Converted cells are discarded
+         * once measured.
          */
-        private int[] computeMaxLengths(List<List<String>> rows, int columnCount) {
+        private int[] computeMaxLengths(Element table, Element headerRow, Evaluator bodyRows, int bodyRowLimit,
+                int columnCount) {
             int[] maxLengths = new int[columnCount];
             // Initialize all columns to a minimum width of 3.
             Arrays.fill(maxLengths, 3);
-            for (List<String> row : rows) {
-                for (int i = 0; i < row.size(); i++) {
-                    maxLengths[i] = Math.max(maxLengths[i], row.get(i)
-                            .length());
+            // Cells are converted again when emitted, so drop the references collected while measuring
+            ConversionContext context = ConversionContext.current();
+            List<String> references = context.references;
+            int referenceCount = references.size();
+            long budget = context.outputBudget;
+            boolean truncated = context.truncated;
+            measureRow(headerRow, maxLengths);
+            forEachBodyRow(table, headerRow, bodyRows, bodyRowLimit, row -> measureRow(row, maxLengths));
+            references.subList(referenceCount, references.size())
+                    .clear();
+            context.outputBudget = budget;
+            context.truncated = truncated;
+            return maxLengths;
+        }
+
+        /**
+         * Number of body rows that are converted within the output budget, with the last one cut.
+         * Without a limit these are all rows. Rows are converted once to find out, like when
+         * measuring, and converting them again cuts them at the same place.
+         */
+        private int rowsWithinBudget(Element table, Element headerRow, Evaluator bodyRows) {
+            ConversionContext context = ConversionContext.current();
+            if (!context.isOutputLimited()) {
+                return Integer.MAX_VALUE;
+            }
+            // A preview only collapses the text it expects to reach, which may stop before the table.
+            // The cells are collapsed once here, before any pass converts them. Cells are blocks, so
+            // collapsing one again on its own leaves a collapsed cell as it is. Tables inside a cell
+            // were collapsed with the cell.
+            boolean collapse = !isInsideCell(table);
+            List<String> references = context.references;
+            int referenceCount = references.size();
+            long budget = context.outputBudget;
+            boolean truncated = context.truncated;
+            convertRowWithinBudget(headerRow, collapse);
+            int[] rowCount = { 0 };
+            forEachBodyRow(table, headerRow, bodyRows, row -> {
+                if (context.isOutputExhausted()) {
+                    return false;
                 }
+                convertRowWithinBudget(row, collapse);
+                rowCount[0]++;
+                return true;
+            });
+            references.subList(referenceCount, references.size())
+                    .clear();
+            context.outputBudget = budget;
+            context.truncated = truncated;
+            return rowCount[0];
+        }
+
+        private void convertRowWithinBudget(Element row, boolean collapse) {
+            Elements cells = cellsOf(row);
+            for (Element cell : cells) {
+                if (collapse) {
+                    new WhitespaceCollapser().collapse(cell);
+                }
+                convertCell(cell);
             }
-            return maxLengths;
+            consumeRowMarkup(cells);
         }
 
+        private void measureRow(Element row, int[] maxLengths) {
+            Elements cells = cellsOf(row);
+            for (int i = 0; i < cells.size(); i++) {
+                maxLengths[i] = Math.max(maxLengths[i], convertCell(cells.get(i)).length());
+            }
+        }
     }
 }
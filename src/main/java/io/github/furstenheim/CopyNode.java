@@ -1,13 +1,15 @@
 package io.github.furstenheim;
 
-import org.jsoup.Jsoup;
-import org.jsoup.nodes.Document;
 import org.jsoup.nodes.Element;
 import org.jsoup.nodes.Node;
+import org.jsoup.nodes.TextNode;
+import org.jsoup.parser.Parser;
+import org.jsoup.parser.Tag;
 
 import java.util.Arrays;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
 import java.util.regex.Pattern;
 
 class CopyNode {
@@ -29,67 +31,169 @@ class CopyNode {
             "tfoot", "th", "thead", "tr", "ul"
             };
 
-    private static Set<String> VOID_ELEMENTS_SET = null;
-    private static Set<String> MEANINGFUL_WHEN_BLANK_ELEMENTS_SET = null;
-    private static Set<String> BLOCK_ELEMENTS_SET = null;
+    // Tags without a kind that documents are mostly made of, so looking them up by identity
+    // answers most nodes without comparing names
+    private static final String[] COMMON_ELEMENTS = {
+            "#text", "#comment", "#data", "abbr", "b", "big", "button", "cite", "code", "em",
+            "font", "i", "kbd", "label", "mark", "q", "s", "small", "span", "strike", "strong",
+            "sub", "sup", "time", "tt", "u"
+            };
+
+    private static final int VOID = 1;
+    private static final int MEANINGFUL_WHEN_BLANK = 1 << 1;
+    private static final int BLOCK = 1 << 2;
+
+    // Kind of every known tag as a bit mask, keyed by the name instance of the jsoup tag. Known
+    // tags share a single name instance, so a lookup is an identity check.
+    private static final Map<String, Integer> TAG_KINDS = new IdentityHashMap<>();
+    // Same kinds by name, for tags jsoup does not know, whose names are new instances
+    private static final Map<String, Integer> TAG_KINDS_BY_NAME = new HashMap<>();
+
+    static {
+        addTagKind(COMMON_ELEMENTS, 0);
+        addTagKind(VOID_ELEMENTS, VOID);
+        addTagKind(MEANINGFUL_WHEN_BLANK_ELEMENTS, MEANINGFUL_WHEN_BLANK);
+        addTagKind(BLOCK_ELEMENTS, BLOCK);
+        for (Map.Entry<String, Integer> entry: TAG_KINDS_BY_NAME.entrySet()) {
+            String tagName = entry.getKey();
+            // Node names like #text are constants of jsoup, equal to ours
+            TAG_KINDS.put(tagName.startsWith("#") ? tagName : Tag.valueOf(tagName).getName(), entry.getValue());
+        }
+    }
+
+    private static void addTagKind (String[] tagNames, int kind) {
+        for (String tagName: tagNames) {
+            TAG_KINDS_BY_NAME.merge(tagName, kind, (a, b) -> a | b);
+        }
+    }
+
+    private static final Pattern BLANK_PATTERN = Pattern.compile("(?i)^\\s*$");
+    private static final Pattern LEADING_WHITESPACE_PATTERN = Pattern.compile("^\\s");
+    private static final Pattern TRAILING_WHITESPACE_PATTERN = Pattern.compile("\\s$");
+    private static final Pattern LEFT_FLANK_PATTERN = Pattern.compile(" $");
+    private static final Pattern RIGHT_FLANK_PATTERN = Pattern.compile("^ ");
+    // Characters at either end of the text that decide the flanking whitespace
+    private static final int EDGE_TEXT_LENGTH = 2;
 
     Node element;
     CopyNode parent;
+    private final boolean code;
 
     CopyNode (String input) {
-        Document document = Jsoup.parse(
-                // DOM parsers arrange elements in the <head> and <body>.
-                // Wrapping in a custom element ensures elements are reliably arranged in
-                // a single element.
-                "<x-copydown id=\"copydown-root\">" + input + "</x-copydown>");
-        Element root = document.getElementById("copydown-root");
-        new WhitespaceCollapser().collapse(root);
+        this(parse(input));
+    }
+
+    private static Element parse (String input) {
+        ConversionPhaseEvent parseEvent = ConversionPhaseEvent.start(ConversionPhaseEvent.PARSE);
+        // Parsing as a fragment of a custom element skips building the <html>, <head> and <body>
+        // of a whole document, and arranges every node in a single element.
+        Element root = new Element("x-copydown");
+        Node[] nodes = Parser.parseFragment(input, root, "")
+                .toArray(new Node[0]);
+        // Detached from the end, where removing a node does not shift the remaining siblings
+        for (int i = nodes.length - 1; i >= 0; i--) {
+            nodes[i].remove();
+        }
+        root.appendChildren(Arrays.asList(nodes));
+        parseEvent.finish();
+        return root;
+    }
+
+    /**
+     * Uses the given element as root of the conversion. Whitespace is collapsed in place.
+     */
+    CopyNode (Element root) {
+        ConversionPhaseEvent collapseEvent = ConversionPhaseEvent.start(ConversionPhaseEvent.WHITESPACE_COLLAPSE);
+        new WhitespaceCollapser().collapse(root, collapseLimit());
+        collapseEvent.finish();
         element = root;
+        code = false;
+    }
+
+    /**
+     * Text that has to be collapsed for the conversion. Markdown is at least as long as the text
+     * it contains, so a preview only needs the text up to its budget, twice that for safety.
+     */
+    private static long collapseLimit () {
+        ConversionContext context = ConversionContext.current();
+        if (context == null || !context.isOutputLimited()) {
+            return Long.MAX_VALUE;
+        }
+        return 2 * Math.max(0, context.outputBudget);
     }
 
-    CopyNode (Node node, CopyNode parent) {
+        CopyNode (Node node, CopyNode parent) {
         element = node;
         this.parent = parent;
+        code = node.nodeName().equals("code") || (parent != null && parent.code);
     }
 
     boolean isCode () {
-        // TODO cache in property to avoid escalating to root
-        return element.nodeName().equals("code") || (parent != null && parent.isCode());
+        return code;
     }
 
     static boolean isBlank (Node element) {
-        String textContent;
-        if (element instanceof Element) {
-            textContent = ((Element)element).wholeText();
-        } else {
-            textContent = element.outerHtml();
-        }
-        return !isVoid(element) &&
-               !isMeaningfulWhenBlank(element) &&
-               // TODO check text is the same as textContent in browser
-               Pattern.compile("(?i)^\\s*$").matcher(textContent).find() &&
-               !hasVoidNodesSet(element) &&
-               !hasMeaningfulWhenBlankNodesSet(element);
+        if (!(element instanceof Element)) {
+            return !isVoid(element) &&
+                   !isMeaningfulWhenBlank(element) &&
+                   BLANK_PATTERN.matcher(element.outerHtml()).find();
+        }
+        ConversionContext context = ConversionContext.current();
+        if (context == null) {
+            return isBlankElement((Element) element, null);
+        }
+        return isBlankElement((Element) element, context.blankElements);
     }
+
+    /**
+     * An element is blank if it is neither void nor meaningful when blank, its text is only
+     * whitespace and all its child elements are blank. Results are kept in the cache, so every
+     * element of a conversion is inspected once instead of once per ancestor.
+     */
+    private static boolean isBlankElement (Element element, Map<Node, Boolean> cache) {
+        Boolean cached = cache == null ? null : cache.get(element);
+        if (cached != null) {
+            return cached;
+        }
+        boolean blank = !isVoid(element) && !isMeaningfulWhenBlank(element);
+        for (int i = 0; blank && i < element.childNodeSize(); i++) {
+            Node child = element.childNode(i);
+            if (child instanceof TextNode) {
+                // TODO check text is the same as textContent in browser
+                blank = BLANK_PATTERN.matcher(((TextNode) child).getWholeText()).find();
+            } else if (child instanceof Element) {
+                blank = isBlankElement((Element) child, cache);
+            }
+        }
+        if (cache != null) {
+            cache.put(element, blank);
+        }
+        return blank;
+    }
+
     FlankingWhiteSpaces flankingWhitespace () {
         String leading = "";
         String trailing = "";
         if (!isBlock(element)) {
-            String textContent;
+            String textStart;
+            String textEnd;
             if (element instanceof Element) {
-                textContent = ((Element)element).wholeText();
+                ConversionContext context = ConversionContext.current();
+                textStart = leadingText(element, context == null ? null : context.leadingTexts);
+                textEnd = trailingText(element, context == null ? null : context.trailingTexts);
             } else {
-                textContent = element.outerHtml();
+                textStart = element.outerHtml();
+                textEnd = textStart;
             }
             // Don't put extra spaces for a line break
-            if (textContent.equals("\n")) {
-                return new FlankingWhiteSpaces("", "");
+            if (textStart.equals("\n")) {
+                return FlankingWhiteSpaces.NONE;
             }
             // TODO original uses textContent
-            boolean hasLeading = Pattern.compile("^\\s").matcher(textContent).find();
-            boolean hasTrailing = Pattern.compile("\\s$").matcher(textContent).find();
+            boolean hasLeading = LEADING_WHITESPACE_PATTERN.matcher(textStart).find();
+            boolean hasTrailing = TRAILING_WHITESPACE_PATTERN.matcher(textEnd).find();
             // TODO maybe make node property and avoid recomputing
-            boolean blankWithSpaces = isBlank(element) && hasLeading && hasTrailing;
+            boolean blankWithSpaces = hasLeading && hasTrailing && isBlank(element);
             if (hasLeading && !isLeftFlankedByWhitespaces()) {
                 leading = " ";
             }
@@ -97,101 +201,112 @@ class CopyNode {
                 trailing = " ";
             }
         }
+        if (leading.isEmpty() && trailing.isEmpty()) {
+            return FlankingWhiteSpaces.NONE;
+        }
         return new FlankingWhiteSpaces(leading, trailing);
     }
 
-    private boolean isLeftFlankedByWhitespaces () {
-        return isChildFlankedByWhitespaces(" $", element.previousSibling());
-    }
-    private boolean isRightFlankedByWhitespaces () {
-        return isChildFlankedByWhitespaces("^ ", element.nextSibling());
-    }
-    private boolean isChildFlankedByWhitespaces (String regex, Node sibling) {
-        if (sibling == null) {
-            return false;
+    /**
+     * First characters of {@link Element#wholeText()}, found without building the whole text.
+     * Results are kept in the cache, so nested elements do not walk down to their first
+     * descendant once per ancestor.
+     */
+    private static String leadingText (Node node, Map<Node, String> cache) {
+        if (node.childNodeSize() == 0) {
+            String own = ownText(node);
+            return own.length() > EDGE_TEXT_LENGTH ? own.substring(0, EDGE_TEXT_LENGTH) : own;
         }
-        if (NodeUtils.isNodeType3(sibling)) {
-            // TODO fix. Originally sibling.nodeValue
-            return Pattern.compile(regex).matcher(sibling.outerHtml()).find();
+        String cached = cache == null ? null : cache.get(node);
+        if (cached != null) {
+            return cached;
         }
-        if (NodeUtils.isNodeType1(sibling)) {
-            // TODO fix. Originally textContent
-            return Pattern.compile(regex).matcher(sibling.outerHtml()).find();
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < node.childNodeSize() && text.length() < EDGE_TEXT_LENGTH; i++) {
+            text.append(leadingText(node.childNode(i), cache));
         }
-        return false;
+        String leading = text.length() > EDGE_TEXT_LENGTH ? text.substring(0, EDGE_TEXT_LENGTH) : text.toString();
+        if (cache != null) {
+            cache.put(node, leading);
+        }
+        return leading;
     }
 
-    private static boolean hasVoidNodesSet (Node node) {
-        if (!(node instanceof Element)) {
-            return false;
+    /**
+     * Last characters of {@link Element#wholeText()}, see {@link #leadingText(Node, Map)}
+     */
+    private static String trailingText (Node node, Map<Node, String> cache) {
+        if (node.childNodeSize() == 0) {
+            String own = ownText(node);
+            return own.length() > EDGE_TEXT_LENGTH ? own.substring(own.length() - EDGE_TEXT_LENGTH) : own;
         }
-        Element element = (Element) node;
-
-        for (String tagName: VOID_ELEMENTS_SET) {
-            if (element.getElementsByTag(tagName).size() != 0) {
-                return true;
-            }
+        String cached = cache == null ? null : cache.get(node);
+        if (cached != null) {
+            return cached;
         }
-        return false;
-    }
-    static boolean isVoid (Node element) {
-        return getVoidNodesSet().contains(element.nodeName());
-    }
-    private static Set<String> getVoidNodesSet() {
-        if (VOID_ELEMENTS_SET != null) {
-            return VOID_ELEMENTS_SET;
+        StringBuilder text = new StringBuilder();
+        for (int i = node.childNodeSize() - 1; i >= 0 && text.length() < EDGE_TEXT_LENGTH; i--) {
+            text.insert(0, trailingText(node.childNode(i), cache));
+        }
+        String trailing = text.length() > EDGE_TEXT_LENGTH ? text.substring(text.length() - EDGE_TEXT_LENGTH) : text.toString();
+        if (cache != null) {
+            cache.put(node, trailing);
         }
-        VOID_ELEMENTS_SET = new HashSet<>(Arrays.asList(VOID_ELEMENTS));
-        return VOID_ELEMENTS_SET;
+        return trailing;
     }
 
-    private static boolean hasMeaningfulWhenBlankNodesSet (Node node) {
-        if (!(node instanceof Element)) {
-            return false;
-        }
-        Element element = (Element) node;
-        for (String tagName: MEANINGFUL_WHEN_BLANK_ELEMENTS_SET) {
-            if (element.getElementsByTag(tagName).size() != 0) {
-                return true;
-            }
+    private static String ownText (Node node) {
+        if (node instanceof TextNode) {
+            return ((TextNode) node).getWholeText();
         }
-        return false;
+        // wholeText renders line breaks as new lines
+        return node.nodeName().equals("br") ? "\n" : "";
     }
-    private static boolean isMeaningfulWhenBlank (Node element) {
-        return getMeaningfulWhenBlankNodesSet().contains(element.nodeName());
+
+    private boolean isLeftFlankedByWhitespaces () {
+        return isChildFlankedByWhitespaces(LEFT_FLANK_PATTERN, NodeUtils.previousSibling(element));
     }
-    private static Set<String> getMeaningfulWhenBlankNodesSet() {
-        if (MEANINGFUL_WHEN_BLANK_ELEMENTS_SET != null) {
-            return MEANINGFUL_WHEN_BLANK_ELEMENTS_SET;
-        }
-        MEANINGFUL_WHEN_BLANK_ELEMENTS_SET = new HashSet<>(Arrays.asList(MEANINGFUL_WHEN_BLANK_ELEMENTS));
-        return MEANINGFUL_WHEN_BLANK_ELEMENTS_SET;
+    private boolean isRightFlankedByWhitespaces () {
+        return isChildFlankedByWhitespaces(RIGHT_FLANK_PATTERN, NodeUtils.nextSibling(element));
     }
-
-    private boolean hasBlockNodesSet (Node node) {
-        if (!(node instanceof Element)) {
+    private boolean isChildFlankedByWhitespaces (Pattern pattern, Node sibling) {
+        if (sibling == null) {
             return false;
         }
-        Element element = (Element) node;
-        for (String tagName: BLOCK_ELEMENTS_SET) {
-            if (element.getElementsByTag(tagName).size() != 0) {
-                return true;
-            }
+        if (NodeUtils.isNodeType3(sibling)) {
+            // TODO fix. Originally sibling.nodeValue
+            return pattern.matcher(sibling.outerHtml()).find();
         }
+        // TODO fix. Originally textContent
+        // The outer html of an element starts with '<' and ends with '>', so it never matches
+        // and there is no need to serialize the sibling's subtree
         return false;
     }
+
+    static boolean isVoid (Node element) {
+        return isOfKind(element, VOID);
+    }
+
+    private static boolean isMeaningfulWhenBlank (Node element) {
+        return isOfKind(element, MEANINGFUL_WHEN_BLANK);
+    }
+
     static boolean isBlock (Node element) {
-        return getBlockNodesSet().contains(element.nodeName());
+        return isOfKind(element, BLOCK);
     }
-    private static Set<String> getBlockNodesSet() {
-        if (BLOCK_ELEMENTS_SET != null) {
-            return BLOCK_ELEMENTS_SET;
+
+    private static boolean isOfKind (Node node, int kind) {
+        String name = node.nodeName();
+        Integer kinds = TAG_KINDS.get(name);
+        if (kinds == null) {
+            kinds = TAG_KINDS_BY_NAME.get(name);
         }
-        BLOCK_ELEMENTS_SET = new HashSet<>(Arrays.asList(BLOCK_ELEMENTS));
-        return BLOCK_ELEMENTS_SET;
+        return kinds != null && (kinds & kind) != 0;
     }
 
     static class FlankingWhiteSpaces {
+        static final FlankingWhiteSpaces NONE = new FlankingWhiteSpaces("", "");
+
         String getLeading() {
             return leading;
         }
@@ -0,0 +1,83 @@
+package io.github.furstenheim;
+
+import java.util.List;
+
+/**
+ * Top-level block of a converted document, with its position in the markdown
+ *
+ * @see CopyDown#convertToBlocks(String)
+ */
+public final class MarkdownBlock {
+    public enum Type {
+        HEADING,
+        PARAGRAPH,
+        LIST,
+        TABLE,
+        CODE_BLOCK,
+        BLOCKQUOTE,
+        THEMATIC_BREAK,
+        // Definitions of referenced links, at the end of the document
+        LINK_REFERENCES
+    }
+
+    private final Type type;
+    private final String markdown;
+    private final int headingLevel;
+    private final List<String> headingPath;
+    private final int start;
+    private final int end;
+
+    MarkdownBlock(Type type, String markdown, int headingLevel, List<String> headingPath, int start, int end) {
+        this.type = type;
+        this.markdown = markdown;
+        this.headingLevel = headingLevel;
+        this.headingPath = headingPath;
+        this.start = start;
+        this.end = end;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * @return markdown of the block, without the blank lines around it
+     */
+    public String getMarkdown() {
+        return markdown;
+    }
+
+    /**
+     * @return level from 1 to 6 of a heading, 0 for other blocks
+     */
+    public int getHeadingLevel() {
+        return headingLevel;
+    }
+
+    /**
+     * @return text of the headings of the sections that contain the block, outermost first. A
+     * heading is the last entry of its own path
+     */
+    public List<String> getHeadingPath() {
+        return headingPath;
+    }
+
+    /**
+     * @return offset of the first character of the block in the markdown of the document
+     */
+    public int getStart() {
+        return start;
+    }
+
+    /**
+     * @return offset after the last character of the block in the markdown of the document
+     */
+    public int getEnd() {
+        return end;
+    }
+
+    @Override
+    public String toString() {
+        return type + "[" + start + ", " + end + ")";
+    }
+}
@@ -0,0 +1,32 @@
+package io.github.furstenheim;
+
+import java.util.List;
+
+/**
+ * Markdown of a document together with its top-level blocks
+ *
+ * @see CopyDown#convertToBlocks(String)
+ */
+public final class MarkdownDocument {
+    private final String markdown;
+    private final List<MarkdownBlock> blocks;
+
+    MarkdownDocument(String markdown, List<MarkdownBlock> blocks) {
+        this.markdown = markdown;
+        this.blocks = blocks;
+    }
+
+    /**
+     * @return the same markdown as {@link CopyDown#convert(String)}
+     */
+    public String getMarkdown() {
+        return markdown;
+    }
+
+    /**
+     * @return blocks in the order of the markdown. Their offsets refer to {@link #getMarkdown()}
+     */
+    public List<MarkdownBlock> getBlocks() {
+        return blocks;
+    }
+}
@@ -0,0 +1,121 @@
+package io.github.furstenheim;
+
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Cold publisher of markdown chunks. Every subscriber gets its own conversion, which only
+ * advances while the subscriber has outstanding demand.
+ */
+class MarkdownPublisher implements Flow.Publisher<String> {
+    /**
+     * Produces the chunks of a conversion. Returns null once there are no more chunks.
+     */
+    interface ChunkSource {
+        String next();
+    }
+
+    private final Supplier<ChunkSource> sourceFactory;
+    private final Executor executor;
+
+    MarkdownPublisher (Supplier<ChunkSource> sourceFactory, Executor executor) {
+        this.sourceFactory = sourceFactory;
+        this.executor = executor;
+    }
+
+    @Override
+    public void subscribe (Flow.Subscriber<? super String> subscriber) {
+        Objects.requireNonNull(subscriber);
+        ChunkSubscription subscription = new ChunkSubscription(subscriber, sourceFactory.get(), executor);
+        subscriber.onSubscribe(subscription);
+    }
+
+    private static class ChunkSubscription implements Flow.Subscription {
+        private final Flow.Subscriber<? super String> subscriber;
+        private final Executor executor;
+        private final AtomicLong demand = new AtomicLong();
+        // Number of drain requests not yet handled. Only the caller that raises it from zero drains.
+        private final AtomicInteger pendingDrains = new AtomicInteger();
+        private ChunkSource source;
+        private volatile boolean cancelled = false;
+        private volatile Throwable invalidRequest = null;
+        private boolean done = false;
+
+        ChunkSubscription (Flow.Subscriber<? super String> subscriber, ChunkSource source, Executor executor) {
+            this.subscriber = subscriber;
+            this.source = source;
+            this.executor = executor;
+        }
+
+        @Override
+        public void request (long n) {
+            if (n <= 0) {
+                invalidRequest = new IllegalArgumentException("Requested " + n + " chunks, demand must be positive");
+            } else {
+                demand.getAndAccumulate(n, (current, added) -> {
+                    long sum = current + added;
+                    return sum < 0 ? Long.MAX_VALUE : sum;
+                });
+            }
+            scheduleDrain();
+        }
+
+        @Override
+        public void cancel () {
+            cancelled = true;
+            scheduleDrain();
+        }
+
+        private void scheduleDrain () {
+            if (pendingDrains.getAndIncrement() == 0) {
+                executor.execute(this::drain);
+            }
+        }
+
+        private void drain () {
+            int missed = 1;
+            do {
+                if (!done) {
+                    emit();
+                }
+                if (done || cancelled) {
+                    // Let the conversion be collected
+                    source = null;
+                }
+                missed = pendingDrains.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void emit () {
+            while (!cancelled) {
+                if (invalidRequest != null) {
+                    done = true;
+                    subscriber.onError(invalidRequest);
+                    return;
+                }
+                if (demand.get() == 0) {
+                    return;
+                }
+                String chunk;
+                try {
+                    chunk = source.next();
+                } catch (RuntimeException e) {
+                    done = true;
+                    subscriber.onError(e);
+                    return;
+                }
+                if (chunk == null) {
+                    done = true;
+                    subscriber.onComplete();
+                    return;
+                }
+                demand.decrementAndGet();
+                subscriber.onNext(chunk);
+            }
+        }
+    }
+}
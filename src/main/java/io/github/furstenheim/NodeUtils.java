@@ -1,7 +1,9 @@
 package io.github.furstenheim;
 
+import org.jsoup.nodes.CDataNode;
 import org.jsoup.nodes.Element;
 import org.jsoup.nodes.Node;
+import org.jsoup.nodes.TextNode;
 
 // Methods missing from jsoup
 class NodeUtils {
@@ -9,10 +11,26 @@ class NodeUtils {
         return element instanceof Element;
     }
     static boolean isNodeType3 (Node element) {
-        return element.nodeName().equals("text") || element.nodeName().equals("#text");
+        // CDATA sections are text nodes in jsoup but are not node type 3
+        return element instanceof TextNode && !(element instanceof CDataNode);
     }
     // CDATA section node
     static boolean isNodeType4 (Node element) {
         return false;
     }
+    // Siblings, ignoring nodes removed by the whitespace collapser
+    static Node previousSibling (Node node) {
+        Node sibling = node.previousSibling();
+        while (sibling instanceof WhitespaceCollapser.RemovedNode) {
+            sibling = sibling.previousSibling();
+        }
+        return sibling;
+    }
+    static Node nextSibling (Node node) {
+        Node sibling = node.nextSibling();
+        while (sibling instanceof WhitespaceCollapser.RemovedNode) {
+            sibling = sibling.nextSibling();
+        }
+        return sibling;
+    }
 }
@@ -1,5 +1,12 @@
 package io.github.furstenheim;
 
+import java.time.Duration;
+import java.util.Objects;
+
+/**
+ * Immutable options of a converter. Options with equal values are equal, and converters with
+ * equal options share their rules.
+ */
 public class Options {
     final String br;
     final String hr;
@@ -11,10 +18,42 @@ public class Options {
     final LinkStyle linkStyle;
     final LinkReferenceStyle linkReferenceStyle;
     final String fence;
+    final TableStyle tableStyle;
+    final int outputBufferSize;
+    final int outputBufferPoolSize;
+    final int maxOutputChars;
+    final int maxInputChars;
+    final int maxNodes;
+    final int maxDepth;
+    final Duration timeout;
 
     public Options(String br, String hr, String emDelimiter, String strongDelimiter,
             HeadingStyle headingStyle, String bulletListMaker, CodeBlockStyle codeBlockStyle,
             LinkStyle linkStyle, LinkReferenceStyle linkReferenceStyle, String fence) {
+        this(br, hr, emDelimiter, strongDelimiter, headingStyle, bulletListMaker, codeBlockStyle, linkStyle,
+             linkReferenceStyle, fence, TableStyle.PADDED, 8192, 16, 0, 0, 0, 0, null);
+    }
+
+    Options(String br, String hr, String emDelimiter, String strongDelimiter,
+            HeadingStyle headingStyle, String bulletListMaker, CodeBlockStyle codeBlockStyle,
+            LinkStyle linkStyle, LinkReferenceStyle linkReferenceStyle, String fence, TableStyle tableStyle,
+            int outputBufferSize, int outputBufferPoolSize, int maxOutputChars, int maxInputChars, int maxNodes,
+            int maxDepth, Duration timeout) {
+        if (outputBufferSize < 16) {
+            throw new IllegalArgumentException("outputBufferSize must be at least 16 bytes");
+        }
+        if (outputBufferPoolSize < 0) {
+            throw new IllegalArgumentException("outputBufferPoolSize must not be negative");
+        }
+        if (maxOutputChars < 0) {
+            throw new IllegalArgumentException("maxOutputChars must not be negative");
+        }
+        if (maxInputChars < 0 || maxNodes < 0 || maxDepth < 0) {
+            throw new IllegalArgumentException("maxInputChars, maxNodes and maxDepth must not be negative");
+        }
+        if (timeout != null && timeout.isNegative()) {
+            throw new IllegalArgumentException("timeout must not be negative");
+        }
         this.br = br;
         this.hr = hr;
         this.emDelimiter = emDelimiter;
@@ -25,5 +64,65 @@ public class Options {
         this.linkStyle = linkStyle;
         this.linkReferenceStyle = linkReferenceStyle;
         this.fence = fence;
+        this.tableStyle = tableStyle;
+        this.outputBufferSize = outputBufferSize;
+        this.outputBufferPoolSize = outputBufferPoolSize;
+        this.maxOutputChars = maxOutputChars;
+        this.maxInputChars = maxInputChars;
+        this.maxNodes = maxNodes;
+        this.maxDepth = maxDepth;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Same options with default buffer sizes and without limits, which the rules do not depend on
+     */
+    Options withoutLimits() {
+        return new Options(br, hr, emDelimiter, strongDelimiter, headingStyle, bulletListMaker, codeBlockStyle,
+                linkStyle, linkReferenceStyle, fence, tableStyle, 8192, 16, 0, 0, 0, 0, null);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        Options options = (Options) o;
+        return outputBufferSize == options.outputBufferSize && outputBufferPoolSize == options.outputBufferPoolSize
+                && maxOutputChars == options.maxOutputChars && maxInputChars == options.maxInputChars
+                && maxNodes == options.maxNodes && maxDepth == options.maxDepth && Objects.equals(br, options.br)
+                && Objects.equals(hr, options.hr) && Objects.equals(emDelimiter, options.emDelimiter)
+                && Objects.equals(strongDelimiter, options.strongDelimiter) && headingStyle == options.headingStyle
+                && Objects.equals(bulletListMaker, options.bulletListMaker) && codeBlockStyle == options.codeBlockStyle
+                && linkStyle == options.linkStyle && linkReferenceStyle == options.linkReferenceStyle
+                && Objects.equals(fence, options.fence) && tableStyle == options.tableStyle
+                && Objects.equals(timeout, options.timeout);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(br, hr, emDelimiter, strongDelimiter, headingStyle, bulletListMaker, codeBlockStyle,
+                linkStyle, linkReferenceStyle, fence, tableStyle, outputBufferSize, outputBufferPoolSize, maxOutputChars,
+                maxInputChars, maxNodes, maxDepth, timeout);
+    }
+
+    /**
+     * Describes the options that affect the output, buffer sizes and limits are left out. Equal options
+     * give equal fingerprints.
+     */
+    String fingerprint() {
+        StringBuilder fingerprint = new StringBuilder();
+        for (Object value : new Object[] { br, hr, emDelimiter, strongDelimiter, headingStyle, bulletListMaker,
+                codeBlockStyle, linkStyle, linkReferenceStyle, fence, tableStyle, maxOutputChars }) {
+            String text = String.valueOf(value);
+            // Length prefixed, so that no two sets of options give the same text
+            fingerprint.append(text.length())
+                    .append(':')
+                    .append(text);
+        }
+        return fingerprint.toString();
     }
 }
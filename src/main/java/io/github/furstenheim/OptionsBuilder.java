@@ -1,5 +1,7 @@
 package io.github.furstenheim;
 
+import java.time.Duration;
+
 public final class OptionsBuilder {
     private String br = "  ";
     private String hr = "* * *";
@@ -11,6 +13,14 @@ public final class OptionsBuilder {
     private LinkStyle linkStyle = LinkStyle.INLINED;
     private LinkReferenceStyle linkReferenceStyle = LinkReferenceStyle.DEFAULT;
     public String fence = "```";
+    private TableStyle tableStyle = TableStyle.PADDED;
+    private int outputBufferSize = 8192;
+    private int outputBufferPoolSize = 16;
+    private int maxOutputChars = 0;
+    private int maxInputChars = 0;
+    private int maxNodes = 0;
+    private int maxDepth = 0;
+    private Duration timeout = null;
 
     private OptionsBuilder() {
     }
@@ -69,8 +79,76 @@ public final class OptionsBuilder {
         return this;
     }
 
+    public OptionsBuilder withTableStyle(TableStyle tableStyle) {
+        this.tableStyle = tableStyle;
+        return this;
+    }
+
+    /**
+     * Size in bytes of the buffers used when writing UTF-8 output to a channel or stream.
+     */
+    public OptionsBuilder withOutputBufferSize(int outputBufferSize) {
+        this.outputBufferSize = outputBufferSize;
+        return this;
+    }
+
+    /**
+     * Maximum number of idle output buffers kept for reuse. Converters with the same buffer size
+     * and pool size share their buffers, one pool for channels and one for streams. Only a few
+     * distinct settings are shared, converters with further settings keep buffers of their own.
+     */
+    public OptionsBuilder withOutputBufferPoolSize(int outputBufferPoolSize) {
+        this.outputBufferPoolSize = outputBufferPoolSize;
+        return this;
+    }
+
+    /**
+     * Stops converting once the markdown reaches about this many characters, for previews and
+     * snippets. Text is cut at a word boundary where possible, open markup is still closed and
+     * references of converted links are still appended. Zero, the default, converts everything.
+     */
+    public OptionsBuilder withMaxOutputChars(int maxOutputChars) {
+        this.maxOutputChars = maxOutputChars;
+        return this;
+    }
+
+    /**
+     * Rejects longer input before parsing it. Zero, the default, accepts any length.
+     */
+    public OptionsBuilder withMaxInputChars(int maxInputChars) {
+        this.maxInputChars = maxInputChars;
+        return this;
+    }
+
+    /**
+     * Aborts conversions of documents with more nodes. Zero, the default, accepts any number.
+     */
+    public OptionsBuilder withMaxNodes(int maxNodes) {
+        this.maxNodes = maxNodes;
+        return this;
+    }
+
+    /**
+     * Aborts conversions of documents with nodes nested deeper, the text of an element is one
+     * level below it. Zero, the default, accepts any depth.
+     */
+    public OptionsBuilder withMaxDepth(int maxDepth) {
+        this.maxDepth = maxDepth;
+        return this;
+    }
+
+    /**
+     * Aborts conversions that take longer. Parsing counts towards the time but is not
+     * interrupted. Null, the default, never times out.
+     */
+    public OptionsBuilder withTimeout(Duration timeout) {
+        this.timeout = timeout;
+        return this;
+    }
+
     public Options build() {
         return new Options(br, hr, emDelimiter, strongDelimiter, headingStyle, bulletListMaker, codeBlockStyle,
-                           linkStyle, linkReferenceStyle, fence);
+                           linkStyle, linkReferenceStyle, fence, tableStyle, outputBufferSize, outputBufferPoolSize,
+                           maxOutputChars, maxInputChars, maxNodes, maxDepth, timeout);
     }
 }
@@ -25,6 +25,32 @@ class Rule {
 
     private String name;
 
+    boolean isContentIgnored() {
+        return contentIgnored;
+    }
+
+    /**
+     * Marks rules whose replacement does not use the converted content, so it is not computed
+     */
+    void setContentIgnored(boolean contentIgnored) {
+        this.contentIgnored = contentIgnored;
+    }
+
+    private boolean contentIgnored = false;
+
+    MarkdownBlock.Type getBlockType() {
+        return blockType;
+    }
+
+    /**
+     * Marks rules that produce a block of their own when converting to blocks
+     */
+    void setBlockType(MarkdownBlock.Type blockType) {
+        this.blockType = blockType;
+    }
+
+    private MarkdownBlock.Type blockType = null;
+
     Rule (String filter, BiFunction<String, Node, String> replacement) {
         this.filter = (el) -> el.nodeName().toLowerCase() == filter;
         this.replacement = replacement;
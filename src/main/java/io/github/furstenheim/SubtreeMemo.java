@@ -0,0 +1,290 @@
+package io.github.furstenheim;
+
+import org.jsoup.nodes.Attribute;
+import org.jsoup.nodes.DataNode;
+import org.jsoup.nodes.Element;
+import org.jsoup.nodes.Node;
+import org.jsoup.nodes.TextNode;
+
+import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Markdown of element subtrees shared across documents, so boilerplate that pages of a site
+ * have in common, like menus, footers or banners, is converted once.
+ * <p>
+ * Subtrees with at least a minimum number of nodes are fingerprinted after whitespace is
+ * collapsed. The converted content of an element is stored under its fingerprint, the options of
+ * the converter and whether it is inside code, which is all the content depends on. The rule of
+ * the element itself and its flanking whitespace still run every time, as they depend on the
+ * position of the element. Content is only stored once a subtree has been seen twice, so content
+ * that is unique to a page does not push boilerplate out.
+ * <p>
+ * Fingerprints are 128 bit hashes seeded at random per memo, so pages cannot be crafted to
+ * collide with the boilerplate of other pages. The memo is thread safe and can be shared by any
+ * number of converters.
+ *
+ * @see CopyDown#CopyDown(Options, SubtreeMemo)
+ */
+public final class SubtreeMemo {
+    public static final int DEFAULT_MIN_NODES = 32;
+    // Fingerprints remembered to admit content on its second sighting
+    private static final int MAX_SEEN = 1 << 16;
+    private static final long K1 = 0x9E3779B97F4A7C15L;
+    private static final long K2 = 0xC2B2AE3D27D4EB4FL;
+
+    private final long maxChars;
+    private final int minNodes;
+    private final long seedHigh;
+    private final long seedLow;
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Set<Key> seen = Collections.newSetFromMap(new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Boolean> eldest) {
+            return size() > MAX_SEEN;
+        }
+    });
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private long storedChars = 0;
+
+    /**
+     * @param maxChars characters of markdown kept, least recently used content is dropped first
+     */
+    public SubtreeMemo(long maxChars) {
+        this(maxChars, DEFAULT_MIN_NODES);
+    }
+
+    /**
+     * @param maxChars characters of markdown kept, least recently used content is dropped first
+     * @param minNodes nodes a subtree must have to be memoized. Small subtrees are cheaper to
+     * convert than to look up
+     */
+    public SubtreeMemo(long maxChars, int minNodes) {
+        if (maxChars <= 0 || minNodes < 1) {
+            throw new IllegalArgumentException("maxChars and minNodes must be positive");
+        }
+        this.maxChars = maxChars;
+        this.minNodes = minNodes;
+        SecureRandom random = new SecureRandom();
+        this.seedHigh = random.nextLong();
+        this.seedLow = random.nextLong();
+    }
+
+    /**
+     * @return number of subtrees whose content was taken from the memo
+     */
+    public long hits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return number of subtrees that were looked up and had to be converted
+     */
+    public long misses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return share of lookups that were hits, 0 before the first lookup
+     */
+    public double hitRate() {
+        long hitCount = hits.sum();
+        long total = hitCount + misses.sum();
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    /**
+     * @return characters of markdown currently kept
+     */
+    public synchronized long storedChars() {
+        return storedChars;
+    }
+
+    /**
+     * Fingerprints of the elements of the tree that are large enough to be memoized
+     *
+     * @param options options of the converter, part of every fingerprint
+     */
+    Map<Node, Key> fingerprint(Node root, Options options) {
+        Hash optionsHash = new Hash(seedHigh, seedLow);
+        optionsHash.add(options.fingerprint());
+        Map<Node, Key> fingerprints = new IdentityHashMap<>();
+        for (Node child : root.childNodes()) {
+            fingerprint(child, optionsHash, fingerprints);
+        }
+        return fingerprints;
+    }
+
+    /**
+     * @return hash of the subtree, with the number of its nodes
+     */
+    private Hash fingerprint(Node node, Hash optionsHash, Map<Node, Key> fingerprints) {
+        Hash hash = new Hash(optionsHash.high, optionsHash.low);
+        hash.add(node.nodeName());
+        if (node instanceof TextNode) {
+            hash.add(((TextNode) node).getWholeText());
+        } else if (node instanceof DataNode) {
+            hash.add(((DataNode) node).getWholeData());
+        }
+        for (Attribute attribute : node.attributes()) {
+            hash.add(attribute.getKey());
+            hash.add(attribute.getValue());
+        }
+        hash.nodes = 1;
+        for (Node child : node.childNodes()) {
+            if (child instanceof WhitespaceCollapser.RemovedNode) {
+                continue;
+            }
+            Hash childHash = fingerprint(child, optionsHash, fingerprints);
+            hash.add(childHash.high);
+            hash.add(childHash.low);
+            hash.nodes += childHash.nodes;
+        }
+        hash.finish();
+        if (node instanceof Element && hash.nodes >= minNodes) {
+            fingerprints.put(node, new Key(hash.high, hash.low, false));
+        }
+        return hash;
+    }
+
+    /**
+     * @return the memoized content, or null if the subtree is not memoized yet
+     */
+    synchronized Entry get(Key key) {
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            hits.increment();
+        }
+        return entry;
+    }
+
+    /**
+     * Stores the content of a subtree that was converted after a lookup, if it was offered before
+     */
+    synchronized void offer(Key key, Entry entry) {
+        misses.increment();
+        if (seen.add(key) || entries.containsKey(key)) {
+            return;
+        }
+        long chars = entry.chars();
+        if (chars > maxChars) {
+            return;
+        }
+        entries.put(key, entry);
+        storedChars += chars;
+        Iterator<Entry> eldest = entries.values()
+                .iterator();
+        while (storedChars > maxChars) {
+            storedChars -= eldest.next()
+                    .chars();
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Fingerprint of a subtree in a given context
+     */
+    static final class Key {
+        private final long high;
+        private final long low;
+        private final boolean code;
+
+        Key(long high, long low, boolean code) {
+            this.high = high;
+            this.low = low;
+            this.code = code;
+        }
+
+        /**
+         * Same subtree inside or outside of code, where text is not escaped
+         */
+        Key inCode(boolean code) {
+            return code == this.code ? this : new Key(high, low, code);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return high == key.high && low == key.low && code == key.code;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(high) * 31 + (code ? 1 : 0);
+        }
+    }
+
+    /**
+     * Converted content of a subtree, with the link references that converting it added
+     */
+    static final class Entry {
+        final String content;
+        final boolean blank;
+        final List<String> references;
+
+        Entry(String content, boolean blank, List<String> references) {
+            this.content = content;
+            this.blank = blank;
+            this.references = references;
+        }
+
+        private long chars() {
+            long chars = content.length();
+            for (String reference : references) {
+                chars += reference.length();
+            }
+            return chars;
+        }
+    }
+
+    /**
+     * Two independently seeded 64 bit lanes
+     */
+    private static final class Hash {
+        private long high;
+        private long low;
+        private int nodes;
+
+        Hash(long high, long low) {
+            this.high = high;
+            this.low = low;
+        }
+
+        void add(String value) {
+            for (int i = 0; i < value.length(); i++) {
+                add(value.charAt(i));
+            }
+            // Separates consecutive strings, so that "ab" + "c" differs from "a" + "bc"
+            add(value.length() | 1L << 40);
+        }
+
+        void add(long value) {
+            high = Long.rotateLeft(high ^ value * K1, 31) * K2;
+            low = Long.rotateLeft(low ^ value * K2, 27) * K1 + 0x52DCE729;
+        }
+
+        void finish() {
+            high = mix(high);
+            low = mix(low ^ high);
+        }
+
+        private static long mix(long value) {
+            value ^= value >>> 33;
+            value *= 0xFF51AFD7ED558CCDL;
+            value ^= value >>> 33;
+            value *= 0xC4CEB9FE1A85EC53L;
+            return value ^ value >>> 33;
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package io.github.furstenheim;
+
+public enum TableStyle {
+    /**
+     * Cells are padded so that columns line up. Every cell is converted twice: once to measure
+     * the column widths and once to emit it.
+     */
+    PADDED,
+    /**
+     * Cells are not padded, so rows are emitted as soon as they are converted.
+     */
+    COMPACT;
+}
@@ -0,0 +1,92 @@
+package io.github.furstenheim;
+
+import org.jsoup.nodes.Element;
+import org.jsoup.nodes.TextNode;
+import org.w3c.dom.Attr;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+import java.util.Locale;
+
+/**
+ * Builds the jsoup tree the converter works on directly from a W3C DOM node, so documents that
+ * were already parsed by an XML or DOM parser do not need to be serialized and parsed again.
+ */
+class W3cDomImporter {
+    /**
+     * Returns a root element that contains a copy of the given node. Documents and fragments
+     * contribute their children. The tree is walked without recursion, so the depth limit of the
+     * conversion applies before a deep document can overflow the stack.
+     *
+     * @throws ConversionAbortedException if the document exceeds the limits of the conversion
+     */
+    Element importRoot (Node source) {
+        Element root = new Element("x-copydown");
+        ConversionContext context = ConversionContext.current();
+        Element parent = root;
+        int depth = 1;
+        Node node = source;
+        while (node != null) {
+            Node firstChild = null;
+            switch (node.getNodeType()) {
+                case Node.ELEMENT_NODE:
+                    context.checkDepth(depth);
+                    Element element = new Element(nameOf(node));
+                    copyAttributes(node, element);
+                    parent.appendChild(element);
+                    firstChild = node.getFirstChild();
+                    if (firstChild != null) {
+                        parent = element;
+                        depth++;
+                    }
+                    break;
+                case Node.TEXT_NODE:
+                case Node.CDATA_SECTION_NODE:
+                    context.checkDepth(depth);
+                    parent.appendChild(new TextNode(node.getNodeValue()));
+                    break;
+                case Node.DOCUMENT_NODE:
+                case Node.DOCUMENT_FRAGMENT_NODE:
+                case Node.ENTITY_REFERENCE_NODE:
+                    firstChild = node.getFirstChild();
+                    break;
+                default:
+                    // Comments, processing instructions and doctypes produce no markdown
+                    break;
+            }
+            if (firstChild != null) {
+                node = firstChild;
+                continue;
+            }
+            // Climbs to the next node that has a sibling, closing the elements on the way
+            while (node != source && node.getNextSibling() == null) {
+                node = node.getParentNode();
+                if (node.getNodeType() == Node.ELEMENT_NODE) {
+                    parent = parent.parent();
+                    depth--;
+                }
+            }
+            node = node == source ? null : node.getNextSibling();
+        }
+        return root;
+    }
+
+    private void copyAttributes (Node source, Element element) {
+        NamedNodeMap attributes = source.getAttributes();
+        for (int i = 0; i < attributes.getLength(); i++) {
+            Attr attribute = (Attr) attributes.item(i);
+            String name = attribute.getName();
+            // Namespace declarations are not attributes in HTML
+            if (name.equals("xmlns") || name.startsWith("xmlns:")) {
+                continue;
+            }
+            element.attr(name, attribute.getValue());
+        }
+    }
+
+    private String nameOf (Node source) {
+        // Namespace aware parsers report the name without prefix as local name
+        String name = source.getLocalName() != null ? source.getLocalName() : source.getNodeName();
+        return name.toLowerCase(Locale.ROOT);
+    }
+}
@@ -1,7 +1,9 @@
 package io.github.furstenheim;
 
+import org.jsoup.internal.StringUtil;
 import org.jsoup.nodes.Node;
 import org.jsoup.nodes.TextNode;
+import org.jsoup.select.NodeTraversor;
 
 import java.util.regex.Pattern;
 
@@ -33,14 +35,32 @@ import java.util.regex.Pattern;
  */
 
 class WhitespaceCollapser {
+    private static final Pattern WHITESPACE_PATTERN = Pattern.compile("[ \\r\\n\\t]+");
+    private static final Pattern TRAILING_SPACE_PATTERN = Pattern.compile(" $");
+
     /**
      * Remove extraneous whitespace from the given element. Modifies the node in place
      * @param element
      */
     void collapse (Node element) {
+        collapse(element, Long.MAX_VALUE);
+    }
+
+    /**
+     * Same as {@link #collapse(Node)}, but stops once the collapsed text exceeds the limit and
+     * leaves the nodes after it as they are. Previews never convert that far.
+     * <p>
+     * Every node is reported to the conversion context, which aborts documents that exceed its
+     * limits before they are converted.
+     */
+    void collapse (Node element, long textLimit) {
         if (element.childNodeSize() == 0 || isPre(element)) {
             return;
         }
+        long textLength = 0;
+        ConversionContext context = ConversionContext.current();
+        // Depth of the current node, the children of the element are at 1
+        int depth = 1;
 
         TextNode prevText = null;
         boolean prevVoid = false;
@@ -49,24 +69,40 @@ class WhitespaceCollapser {
 
         // Traverse the tree
         while (node != element) {
+            if (context != null && (prev == null || prev.parentNode() != node)) {
+                // Elements are visited again when climbing back up from their children
+                context.visitNode(depth);
+                if (isPre(node)) {
+                    visitPre(node, depth, context);
+                }
+            }
             if (NodeUtils.isNodeType3(node) || NodeUtils.isNodeType4(node)) {
                 TextNode textNode = (TextNode) node;
-                String value = textNode.attributes().get("#text").replaceAll("[ \\r\\n\\t]+", " ");
-                if ((prevText == null || Pattern.compile(" $").matcher(prevText.text()).find()) &&!prevVoid && value.charAt(0) == ' ') {
+                String value = WHITESPACE_PATTERN.matcher(textNode.getWholeText()).replaceAll(" ");
+                if ((prevText == null || TRAILING_SPACE_PATTERN.matcher(prevText.text()).find()) &&!prevVoid && !value.isEmpty() && value.charAt(0) == ' ') {
             value = value.substring(1);
                 }
                 if (value.length() == 0) {
-                    node = remove(node);
+                    // The placeholder becomes prev, so that the traversal climbs up if it was the last child
+                    prev = remove(node);
+                    node = prev.nextSibling() != null ? prev.nextSibling() : prev.parentNode();
+                    if (node == prev.parentNode()) {
+                        depth--;
+                    }
                     continue;
                 }
                 TextNode newNode = new TextNode(value);
                 node.replaceWith(newNode);
                 prevText = newNode;
                 node = newNode;
+                textLength += value.length();
+                if (textLength > textLimit) {
+                    return;
+                }
             } else if (NodeUtils.isNodeType1(node)) {
                 if (isBlock(node)) {
                     if (prevText != null) {
-                        prevText.text(prevText.text().replaceAll(" $",""));
+                        prevText.text(TRAILING_SPACE_PATTERN.matcher(prevText.text()).replaceAll(""));
                     }
                     prevText = null;
                     prevVoid = false;
@@ -76,15 +112,24 @@ class WhitespaceCollapser {
                     prevVoid = true;
                 }
             } else {
-                node = remove(node);
+                prev = remove(node);
+                node = prev.nextSibling() != null ? prev.nextSibling() : prev.parentNode();
+                if (node == prev.parentNode()) {
+                    depth--;
+                }
                 continue;
             }
             Node nextNode = next(prev, node);
+            if (nextNode.parentNode() == node) {
+                depth++;
+            } else if (nextNode == node.parentNode()) {
+                depth--;
+            }
             prev = node;
             node = nextNode;
         }
         if (prevText != null) {
-            prevText.text(prevText.text().replaceAll(" $", ""));
+            prevText.text(TRAILING_SPACE_PATTERN.matcher(prevText.text()).replaceAll(""));
             if (prevText.text() == null) {
                 remove(prevText);
             }
@@ -92,17 +137,59 @@ class WhitespaceCollapser {
 
     }
 
+    /**
+     * Reports the nodes inside a pre element, whose whitespace is kept, so that they count
+     * towards the limits as well
+     */
+    private void visitPre (Node pre, int depth, ConversionContext context) {
+        NodeTraversor.traverse((node, preDepth) -> {
+            if (node != pre) {
+                context.visitNode(depth + preDepth);
+            }
+        }, pre);
+    }
+
+    /**
+     * Collapses the whitespace of a text that is the only child of the root, which is what
+     * {@link #collapse(Node)} does to input without any markup.
+     *
+     * @return the collapsed text, as {@link TextNode#text()} would return it
+     */
+    static String collapseText (String text) {
+        String value = WHITESPACE_PATTERN.matcher(text).replaceAll(" ");
+        if (!value.isEmpty() && value.charAt(0) == ' ') {
+            value = value.substring(1);
+        }
+        if (value.isEmpty()) {
+            return value;
+        }
+        return TRAILING_SPACE_PATTERN.matcher(StringUtil.normaliseWhitespace(value)).replaceAll("");
+    }
+
     /**
      * remove(node) removes the given node from the DOM and returns the
-     * next node in the sequence.
+     * placeholder that took its place.
+     * <p>
+     * Detaching a node from jsoup reindexes all of its later siblings, which makes collapsing
+     * long sibling lists quadratic. The node is therefore swapped for an empty placeholder,
+     * which is constant time. The converter skips placeholders wherever it looks at siblings.
      *
      * @param {Node} node
      * @return {Node} node
      */
     private Node remove (Node node) {
-        Node next = node.nextSibling() != null ? node.nextSibling() : (Node)node.parentNode();
-        node.remove();
-        return next;
+        RemovedNode placeholder = new RemovedNode();
+        node.replaceWith(placeholder);
+        return placeholder;
+    }
+
+    /**
+     * Empty text left in place of a removed node
+     */
+    static class RemovedNode extends TextNode {
+        RemovedNode () {
+            super("");
+        }
     }
     /**
      * Returns next node in the sequence given current and previous nodes
@@ -0,0 +1,323 @@
+package io.github.furstenheim.server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.github.furstenheim.ConversionAbortedException;
+import io.github.furstenheim.CopyDown;
+import io.github.furstenheim.Options;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+
+/**
+ * Local HTTP service that converts HTML to markdown, so programs outside the JVM can share one
+ * converter process instead of launching a JVM per document.
+ * <p>
+ * {@code POST /convert} takes the HTML as request body and streams the markdown back, one
+ * top-level block at a time. Options are read from the query string or the
+ * {@value RequestOptions#HEADER} header, for example {@code /convert?headingStyle=ATX}.
+ * {@code GET /metrics} returns request and conversion counters in the Prometheus text format.
+ * <p>
+ * Every conversion is bounded by the server limits on nodes, depth and time, and its input by the
+ * request size. Documents over a limit are answered with 422.
+ * <p>
+ * Every request is handled on its own virtual thread.
+ */
+public final class CopyDownServer {
+    public static final int DEFAULT_MAX_REQUEST_BYTES = 1024 * 1024;
+    public static final int DEFAULT_MAX_NODES = 500_000;
+    public static final int DEFAULT_MAX_DEPTH = 256;
+    public static final Duration DEFAULT_TIMEOUT = Duration.ofSeconds(10);
+
+    private static final System.Logger LOGGER = System.getLogger(CopyDownServer.class.getName());
+
+    private static final String MARKDOWN_CONTENT_TYPE = "text/markdown; charset=utf-8";
+    private static final String TEXT_CONTENT_TYPE = "text/plain; charset=utf-8";
+    private static final String METRICS_CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final int maxRequestBytes;
+    private final RequestOptions.Limits limits;
+    private final CopyDown defaultConverter;
+    private final ServerMetrics metrics = new ServerMetrics();
+
+    /**
+     * Creates a server with the default conversion limits
+     *
+     * @param address address to listen on. Port 0 picks a free port
+     * @param maxRequestBytes largest HTML body accepted, larger requests are rejected with 413
+     * @throws IOException if the address cannot be bound
+     */
+    public CopyDownServer(InetSocketAddress address, int maxRequestBytes) throws IOException {
+        this(address, maxRequestBytes, DEFAULT_MAX_NODES, DEFAULT_MAX_DEPTH, DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * @param address address to listen on. Port 0 picks a free port
+     * @param maxRequestBytes largest HTML body accepted, larger requests are rejected with 413
+     * @param maxNodes most nodes of a converted document, zero for no limit
+     * @param maxDepth deepest nesting of a converted document, zero for no limit
+     * @param timeout longest time of a conversion, null for no limit
+     * @throws IOException if the address cannot be bound
+     */
+    public CopyDownServer(InetSocketAddress address, int maxRequestBytes, int maxNodes, int maxDepth,
+            Duration timeout) throws IOException {
+        if (maxRequestBytes <= 0) {
+            throw new IllegalArgumentException("maxRequestBytes must be positive");
+        }
+        this.maxRequestBytes = maxRequestBytes;
+        // A character takes at least one byte in any charset a client may declare
+        limits = new RequestOptions.Limits(maxRequestBytes, maxNodes, maxDepth, timeout);
+        defaultConverter = new CopyDown(limits.newBuilder()
+                .build());
+        server = HttpServer.create(address, 0);
+        executor = Executors.newVirtualThreadPerTaskExecutor();
+        server.setExecutor(executor);
+        server.createContext("/convert", this::convert);
+        server.createContext("/metrics", this::metrics);
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    /**
+     * Stops accepting requests and waits for the ones being served to finish
+     *
+     * @param delaySeconds longest time to wait for running exchanges before closing them
+     */
+    public void stop(int delaySeconds) {
+        server.stop(delaySeconds);
+        executor.close();
+    }
+
+    public InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    /**
+     * Starts a server configured with the system properties {@code copydown.server.host}
+     * (default 127.0.0.1), {@code copydown.server.port} (default 8080),
+     * {@code copydown.server.maxRequestBytes} (default 1 MiB), {@code copydown.server.maxNodes},
+     * {@code copydown.server.maxDepth} and {@code copydown.server.timeout} (an ISO-8601 duration).
+     */
+    public static void main(String[] args) throws IOException {
+        String host = System.getProperty("copydown.server.host", "127.0.0.1");
+        int port = Integer.getInteger("copydown.server.port", 8080);
+        int maxRequestBytes = Integer.getInteger("copydown.server.maxRequestBytes", DEFAULT_MAX_REQUEST_BYTES);
+        int maxNodes = Integer.getInteger("copydown.server.maxNodes", DEFAULT_MAX_NODES);
+        int maxDepth = Integer.getInteger("copydown.server.maxDepth", DEFAULT_MAX_DEPTH);
+        Duration timeout = Duration.parse(System.getProperty("copydown.server.timeout", DEFAULT_TIMEOUT.toString()));
+        CopyDownServer server = new CopyDownServer(new InetSocketAddress(host, port), maxRequestBytes, maxNodes,
+                                                   maxDepth, timeout);
+        Runtime.getRuntime()
+                .addShutdownHook(new Thread(() -> server.stop(1)));
+        server.start();
+        System.out.println("Converting HTML on http://" + host + ":" + server.getAddress()
+                .getPort() + "/convert");
+    }
+
+    private void convert (HttpExchange exchange) throws IOException {
+        if (!"/convert".equals(exchange.getRequestURI()
+                .getPath())) {
+            sendText(exchange, 404, "Not found");
+            return;
+        }
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            exchange.getResponseHeaders()
+                    .set("Allow", "POST");
+            sendText(exchange, 405, "Use POST with the HTML as body");
+            return;
+        }
+        metrics.requests.increment();
+        metrics.inFlight.incrementAndGet();
+        try {
+            handleConversion(exchange);
+        } finally {
+            metrics.inFlight.decrementAndGet();
+        }
+        // Not closed when the handler throws, so the server drops the connection and the client
+        // does not mistake a truncated response for a complete one
+        exchange.close();
+    }
+
+    private void handleConversion (HttpExchange exchange) throws IOException {
+        Options options;
+        Charset charset;
+        try {
+            options = RequestOptions.parse(exchange.getRequestHeaders()
+                    .getFirst(RequestOptions.HEADER), exchange.getRequestURI()
+                    .getRawQuery(), limits);
+            charset = charsetOf(exchange.getRequestHeaders()
+                    .getFirst("Content-Type"));
+        } catch (IllegalArgumentException e) {
+            metrics.rejectedInvalid.increment();
+            sendText(exchange, 400, e.getMessage());
+            return;
+        }
+        byte[] body = readBody(exchange);
+        if (body == null) {
+            metrics.rejectedTooLarge.increment();
+            sendText(exchange, 413, "Request body exceeds " + maxRequestBytes + " bytes");
+            return;
+        }
+        metrics.inputBytes.add(body.length);
+        CopyDown converter = options == null ? defaultConverter : new CopyDown(options);
+        ResponseWriter writer = new ResponseWriter(exchange);
+        long start = System.nanoTime();
+        // Converts on this thread, each block is written before the next one is converted
+        converter.publish(new String(body, charset), Runnable::run)
+                .subscribe(writer);
+        metrics.conversionNanos.add(System.nanoTime() - start);
+        writer.finish();
+    }
+
+    /**
+     * @return the body, or null if it is larger than the limit
+     */
+    private byte[] readBody (HttpExchange exchange) throws IOException {
+        String contentLength = exchange.getRequestHeaders()
+                .getFirst("Content-Length");
+        if (contentLength != null) {
+            try {
+                if (Long.parseLong(contentLength.trim()) > maxRequestBytes) {
+                    return null;
+                }
+            } catch (NumberFormatException e) {
+                // Read it and let the limit decide
+            }
+        }
+        try (InputStream in = exchange.getRequestBody()) {
+            byte[] body = in.readNBytes(maxRequestBytes + 1);
+            return body.length > maxRequestBytes ? null : body;
+        }
+    }
+
+    private static Charset charsetOf (String contentType) {
+        if (contentType != null) {
+            for (String parameter : contentType.split(";")) {
+                String trimmed = parameter.trim();
+                if (trimmed.regionMatches(true, 0, "charset=", 0, 8)) {
+                    return Charset.forName(trimmed.substring(8)
+                            .replace("\"", ""));
+                }
+            }
+        }
+        return StandardCharsets.UTF_8;
+    }
+
+    private void metrics (HttpExchange exchange) throws IOException {
+        if (!"GET".equals(exchange.getRequestMethod())) {
+            exchange.getResponseHeaders()
+                    .set("Allow", "GET");
+            sendText(exchange, 405, "Use GET");
+            return;
+        }
+        send(exchange, 200, METRICS_CONTENT_TYPE, metrics.render());
+    }
+
+    private static void sendText (HttpExchange exchange, int status, String message) throws IOException {
+        send(exchange, status, TEXT_CONTENT_TYPE, message + "\n");
+    }
+
+    private static void send (HttpExchange exchange, int status, String contentType, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders()
+                .set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Writes every published block as soon as it arrives. The status line is only sent with the
+     * first block, so a conversion that fails early still gets a 500.
+     */
+    private final class ResponseWriter implements Flow.Subscriber<String> {
+        private final HttpExchange exchange;
+        private Flow.Subscription subscription;
+        private Writer body;
+        private IOException writeFailure;
+        private Throwable conversionFailure;
+
+        ResponseWriter (HttpExchange exchange) {
+            this.exchange = exchange;
+        }
+
+        @Override
+        public void onSubscribe (Flow.Subscription subscription) {
+            this.subscription = subscription;
+            // Writing blocks this thread, which is all the backpressure a synchronous conversion needs
+            subscription.request(Long.MAX_VALUE);
+        }
+
+        @Override
+        public void onNext (String chunk) {
+            try {
+                if (body == null) {
+                    openBody();
+                }
+                body.write(chunk);
+                body.flush();
+                metrics.outputChars.add(chunk.length());
+            } catch (IOException e) {
+                writeFailure = e;
+                subscription.cancel();
+            }
+        }
+
+        @Override
+        public void onError (Throwable throwable) {
+            conversionFailure = throwable;
+        }
+
+        @Override
+        public void onComplete () {
+        }
+
+        void finish () throws IOException {
+            if (writeFailure != null) {
+                metrics.failedConversions.increment();
+                throw writeFailure;
+            }
+            if (conversionFailure != null) {
+                metrics.failedConversions.increment();
+                if (body != null) {
+                    throw new IOException("Conversion failed after the response started", conversionFailure);
+                }
+                if (conversionFailure instanceof ConversionAbortedException aborted) {
+                    sendText(exchange, 422, "Document exceeds the server limits: " + aborted.getReason());
+                    return;
+                }
+                LOGGER.log(System.Logger.Level.WARNING, "Conversion failed", conversionFailure);
+                sendText(exchange, 500, "Conversion failed");
+                return;
+            }
+            metrics.conversions.increment();
+            if (body == null) {
+                openBody();
+            }
+            body.close();
+        }
+
+        private void openBody () throws IOException {
+            exchange.getResponseHeaders()
+                    .set("Content-Type", MARKDOWN_CONTENT_TYPE);
+            // Length 0 selects chunked encoding
+            exchange.sendResponseHeaders(200, 0);
+            body = new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package io.github.furstenheim.server;
+
+import io.github.furstenheim.CodeBlockStyle;
+import io.github.furstenheim.HeadingStyle;
+import io.github.furstenheim.LinkReferenceStyle;
+import io.github.furstenheim.LinkStyle;
+import io.github.furstenheim.Options;
+import io.github.furstenheim.OptionsBuilder;
+import io.github.furstenheim.TableStyle;
+
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+
+/**
+ * Reads converter options from a request. Options are given as {@code name=value} pairs, in the
+ * query string or in the {@value #HEADER} header, with the same names as the README options table.
+ * Query parameters are applied after the header, so they win. The conversion limits start at the
+ * server {@link Limits}, requests may lower them but not raise them.
+ */
+final class RequestOptions {
+    static final String HEADER = "X-CopyDown-Options";
+
+    private RequestOptions() {
+    }
+
+    /**
+     * Limits applied to every conversion of the server. Zero or a null timeout means no limit.
+     */
+    record Limits(int maxInputChars, int maxNodes, int maxDepth, Duration timeout) {
+        OptionsBuilder newBuilder () {
+            return OptionsBuilder.anOptions()
+                    .withMaxInputChars(maxInputChars)
+                    .withMaxNodes(maxNodes)
+                    .withMaxDepth(maxDepth)
+                    .withTimeout(timeout);
+        }
+    }
+
+    /**
+     * @return the options, or null when the request does not set any
+     * @throws IllegalArgumentException if an option is unknown, has an invalid value or raises a limit
+     */
+    static Options parse (String header, String query, Limits limits) {
+        if (isEmpty(header) && isEmpty(query)) {
+            return null;
+        }
+        OptionsBuilder builder = limits.newBuilder();
+        apply(builder, header, limits);
+        apply(builder, query, limits);
+        return builder.build();
+    }
+
+    private static void apply (OptionsBuilder builder, String pairs, Limits limits) {
+        if (isEmpty(pairs)) {
+            return;
+        }
+        for (String pair : pairs.split("&")) {
+            if (pair.isEmpty()) {
+                continue;
+            }
+            int separator = pair.indexOf('=');
+            if (separator < 0) {
+                throw new IllegalArgumentException("Option " + pair + " has no value");
+            }
+            String name = URLDecoder.decode(pair.substring(0, separator), StandardCharsets.UTF_8).trim();
+            String value = URLDecoder.decode(pair.substring(separator + 1), StandardCharsets.UTF_8);
+            set(builder, name, value, limits);
+        }
+    }
+
+    private static void set (OptionsBuilder builder, String name, String value, Limits limits) {
+        switch (name) {
+            case "br" -> builder.withBr(value);
+            case "hr" -> builder.withHr(value);
+            case "emDelimiter" -> builder.withEmDelimiter(value);
+            case "strongDelimiter" -> builder.withStrongDelimiter(value);
+            case "headingStyle" -> builder.withHeadingStyle(toEnum(HeadingStyle.class, name, value));
+            case "bulletListMarker", "bulletListMaker" -> builder.withBulletListMaker(value);
+            case "codeBlockStyle" -> builder.withCodeBlockStyle(toEnum(CodeBlockStyle.class, name, value));
+            case "fence" -> builder.withFence(value);
+            case "linkStyle" -> builder.withLinkStyle(toEnum(LinkStyle.class, name, value));
+            case "linkReferenceStyle" -> builder.withLinkReferenceStyle(toEnum(LinkReferenceStyle.class, name, value));
+            case "tableStyle" -> builder.withTableStyle(toEnum(TableStyle.class, name, value));
+            case "maxOutputChars" -> builder.withMaxOutputChars(toInt(name, value));
+            case "maxInputChars" -> builder.withMaxInputChars(atMost(name, toInt(name, value), limits.maxInputChars()));
+            case "maxNodes" -> builder.withMaxNodes(atMost(name, toInt(name, value), limits.maxNodes()));
+            case "maxDepth" -> builder.withMaxDepth(atMost(name, toInt(name, value), limits.maxDepth()));
+            case "timeout" -> builder.withTimeout(atMost(name, toDuration(name, value), limits.timeout()));
+            default -> throw new IllegalArgumentException("Unknown option " + name);
+        }
+    }
+
+    private static <E extends Enum<E>> E toEnum (Class<E> type, String name, String value) {
+        try {
+            return Enum.valueOf(type, value.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid value " + value + " for option " + name);
+        }
+    }
+
+    private static int toInt (String name, String value) {
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value " + value + " for option " + name);
+        }
+    }
+
+    private static Duration toDuration (String name, String value) {
+        try {
+            return Duration.parse(value.trim());
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Invalid value " + value + " for option " + name);
+        }
+    }
+
+    private static int atMost (String name, int value, int limit) {
+        if (value <= 0) {
+            throw new IllegalArgumentException("Option " + name + " must be positive");
+        }
+        if (limit > 0 && value > limit) {
+            throw new IllegalArgumentException("Option " + name + " exceeds the server limit of " + limit);
+        }
+        return value;
+    }
+
+    private static Duration atMost (String name, Duration value, Duration limit) {
+        if (value.isZero() || value.isNegative()) {
+            throw new IllegalArgumentException("Option " + name + " must be positive");
+        }
+        if (limit != null && value.compareTo(limit) > 0) {
+            throw new IllegalArgumentException("Option " + name + " exceeds the server limit of " + limit);
+        }
+        return value;
+    }
+
+    private static boolean isEmpty (String value) {
+        return value == null || value.isEmpty();
+    }
+}
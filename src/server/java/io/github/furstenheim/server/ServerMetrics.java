@@ -0,0 +1,62 @@
+package io.github.furstenheim.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of the conversion service, rendered in the Prometheus text format.
+ */
+final class ServerMetrics {
+    final LongAdder requests = new LongAdder();
+    final LongAdder conversions = new LongAdder();
+    final LongAdder failedConversions = new LongAdder();
+    final LongAdder rejectedTooLarge = new LongAdder();
+    final LongAdder rejectedInvalid = new LongAdder();
+    final LongAdder inputBytes = new LongAdder();
+    final LongAdder outputChars = new LongAdder();
+    final LongAdder conversionNanos = new LongAdder();
+    final AtomicLong inFlight = new AtomicLong();
+
+    String render () {
+        StringBuilder builder = new StringBuilder();
+        counter(builder, "copydown_requests_total", "Conversion requests received", requests.sum());
+        counter(builder, "copydown_conversions_total", "Conversions that completed", conversions.sum());
+        counter(builder, "copydown_conversion_failures_total", "Conversions that failed", failedConversions.sum());
+        builder.append("# HELP copydown_requests_rejected_total Requests rejected before conversion\n")
+                .append("# TYPE copydown_requests_rejected_total counter\n")
+                .append("copydown_requests_rejected_total{reason=\"too_large\"} ")
+                .append(rejectedTooLarge.sum())
+                .append('\n')
+                .append("copydown_requests_rejected_total{reason=\"invalid\"} ")
+                .append(rejectedInvalid.sum())
+                .append('\n');
+        counter(builder, "copydown_input_bytes_total", "Bytes of HTML received", inputBytes.sum());
+        counter(builder, "copydown_output_chars_total", "Characters of markdown sent", outputChars.sum());
+        builder.append("# HELP copydown_conversion_seconds_total Time spent converting\n")
+                .append("# TYPE copydown_conversion_seconds_total counter\n")
+                .append("copydown_conversion_seconds_total ")
+                .append(conversionNanos.sum() / 1e9)
+                .append('\n');
+        builder.append("# HELP copydown_requests_in_flight Conversion requests being served\n")
+                .append("# TYPE copydown_requests_in_flight gauge\n")
+                .append("copydown_requests_in_flight ")
+                .append(inFlight.get())
+                .append('\n');
+        return builder.toString();
+    }
+
+    private static void counter (StringBuilder builder, String name, String help, long value) {
+        builder.append("# HELP ")
+                .append(name)
+                .append(' ')
+                .append(help)
+                .append('\n')
+                .append("# TYPE ")
+                .append(name)
+                .append(" counter\n")
+                .append(name)
+                .append(' ')
+                .append(value)
+                .append('\n');
+    }
+}
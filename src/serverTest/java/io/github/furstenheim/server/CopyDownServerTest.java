@@ -0,0 +1,117 @@
+package io.github.furstenheim.server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.startsWith;
+
+class CopyDownServerTest {
+    private static final int MAX_REQUEST_BYTES = 1024;
+
+    private CopyDownServer server;
+    private HttpClient client;
+
+    @BeforeEach
+    public void startServer() throws IOException {
+        server = new CopyDownServer(new InetSocketAddress("127.0.0.1", 0), MAX_REQUEST_BYTES);
+        server.start();
+        client = HttpClient.newHttpClient();
+    }
+
+    @AfterEach
+    public void stopServer() {
+        server.stop(0);
+        client.close();
+    }
+
+    @Test
+    public void convertsPostedHtml() throws Exception {
+        HttpResponse<String> response = post("/convert", "<h1>Title</h1><p>Some <em>text</em></p>");
+        assertThat(response.statusCode(), equalTo(200));
+        assertThat(response.headers()
+                .firstValue("Content-Type")
+                .orElse(""), startsWith("text/markdown"));
+        assertThat(response.body(), equalTo("Title\n=====\n\nSome _text_"));
+    }
+
+    @Test
+    public void readsOptionsFromQueryAndHeader() throws Exception {
+        HttpRequest request = HttpRequest.newBuilder(uri("/convert?headingStyle=atx"))
+                .header("X-CopyDown-Options", "emDelimiter=*&headingStyle=SETEXT")
+                .POST(HttpRequest.BodyPublishers.ofString("<h1>Title</h1><p>Some <em>text</em></p>"))
+                .build();
+        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+        assertThat(response.statusCode(), equalTo(200));
+        assertThat(response.body(), equalTo("# Title\n\nSome *text*"));
+    }
+
+    @Test
+    public void rejectsInvalidOptions() throws Exception {
+        assertThat(post("/convert?headingStyle=huge", "<p>a</p>").statusCode(), equalTo(400));
+        assertThat(post("/convert?colour=blue", "<p>a</p>").statusCode(), equalTo(400));
+        assertThat(post("/convert?maxOutputChars=ten", "<p>a</p>").statusCode(), equalTo(400));
+        assertThat(post("/convert?maxOutputChars=-1", "<p>a</p>").statusCode(), equalTo(400));
+    }
+
+    @Test
+    public void rejectsBodiesOverTheLimit() throws Exception {
+        HttpResponse<String> response = post("/convert", "<p>" + "a".repeat(MAX_REQUEST_BYTES) + "</p>");
+        assertThat(response.statusCode(), equalTo(413));
+        assertThat(post("/convert", "<p>" + "a".repeat(MAX_REQUEST_BYTES - 7) + "</p>").statusCode(), equalTo(200));
+    }
+
+    @Test
+    public void appliesServerLimits() throws Exception {
+        HttpResponse<String> response = post("/convert", "<b>".repeat(CopyDownServer.DEFAULT_MAX_DEPTH + 1) + "x");
+        assertThat(response.statusCode(), equalTo(422));
+        assertThat(response.body(), equalTo("Document exceeds the server limits: TOO_DEEP\n"));
+        assertThat(post("/convert?maxDepth=3", "<div><div><p>a</p></div></div>").statusCode(), equalTo(422));
+        assertThat(post("/convert?maxDepth=4&timeout=PT1S", "<div><div><p>a</p></div></div>").statusCode(),
+                   equalTo(200));
+    }
+
+    @Test
+    public void rejectsRaisedLimits() throws Exception {
+        assertThat(post("/convert?maxDepth=" + (CopyDownServer.DEFAULT_MAX_DEPTH + 1), "<p>a</p>").statusCode(),
+                   equalTo(400));
+        assertThat(post("/convert?maxNodes=0", "<p>a</p>").statusCode(), equalTo(400));
+        assertThat(post("/convert?timeout=PT1H", "<p>a</p>").statusCode(), equalTo(400));
+        assertThat(post("/convert?timeout=soon", "<p>a</p>").statusCode(), equalTo(400));
+    }
+
+    @Test
+    public void exposesMetrics() throws Exception {
+        post("/convert", "<p>one</p>");
+        post("/convert?linkStyle=sideways", "<p>two</p>");
+        HttpResponse<String> response = client.send(HttpRequest.newBuilder(uri("/metrics"))
+                .build(), HttpResponse.BodyHandlers.ofString());
+        assertThat(response.statusCode(), equalTo(200));
+        assertThat(response.body(), containsString("copydown_requests_total 2\n"));
+        assertThat(response.body(), containsString("copydown_conversions_total 1\n"));
+        assertThat(response.body(), containsString("copydown_requests_rejected_total{reason=\"invalid\"} 1\n"));
+        assertThat(response.body(), containsString("copydown_input_bytes_total 10\n"));
+    }
+
+    private HttpResponse<String> post(String path, String html) throws Exception {
+        HttpRequest request = HttpRequest.newBuilder(uri(path))
+                .POST(HttpRequest.BodyPublishers.ofString(html))
+                .build();
+        return client.send(request, HttpResponse.BodyHandlers.ofString());
+    }
+
+    private URI uri(String path) {
+        return URI.create("http://127.0.0.1:" + server.getAddress()
+                .getPort() + path);
+    }
+}
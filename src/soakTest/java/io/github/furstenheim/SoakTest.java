@@ -0,0 +1,370 @@
+package io.github.furstenheim;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+/**
+ * Converts a generated corpus of pages for a fixed time in a small heap and checks that throughput
+ * and latency hold up against a baseline and that the old generation does not grow. Run through
+ * the soakTest Gradle task.
+ * <p>
+ * The baseline is the report of an earlier run on the same machine when one is given, for example
+ * the report of the last release. Otherwise it is the first sample interval of the run itself,
+ * which catches conversions slowing down as the run goes on.
+ */
+class SoakTest {
+    private static final int CORPUS_SIZE = 200;
+    private static final Duration SAMPLE_INTERVAL = Duration.ofSeconds(5);
+    // Latencies are counted per microsecond, slower conversions count in the last bucket
+    private static final int LATENCY_BUCKETS = 100_000;
+
+    @Test
+    public void convertCorpusWithinHeapCeiling() throws IOException {
+        Duration duration = Duration.parse(System.getProperty("copydown.soak.duration", "PT3M"));
+        double tolerance = Double.parseDouble(System.getProperty("copydown.soak.tolerance", "0.2"));
+        long maxOldGenGrowthBytes = Long.parseLong(System.getProperty("copydown.soak.maxOldGenGrowthBytes", "4194304"));
+        String baselinePath = System.getProperty("copydown.soak.baseline", "");
+        Path reportPath = Paths.get(System.getProperty("copydown.soak.report", "build/reports/soak/soak-report.json"));
+        Gson gson = new GsonBuilder().setPrettyPrinting()
+                .serializeNulls()
+                .create();
+        Map<?, ?> baseline = baselinePath.isEmpty() ? null : gson.fromJson(
+                new String(Files.readAllBytes(Paths.get(baselinePath)), StandardCharsets.UTF_8), Map.class);
+
+        List<String> corpus = generateCorpus(new Random(42));
+        List<CopyDown> converters = List.of(new CopyDown(), new CopyDown(OptionsBuilder.anOptions()
+                .withHeadingStyle(HeadingStyle.ATX)
+                .withCodeBlockStyle(CodeBlockStyle.FENCED)
+                .withLinkStyle(LinkStyle.REFERENCED)
+                .withTableStyle(TableStyle.COMPACT)
+                .build()));
+
+        // Warm up before taking the baseline, so class loading and JIT data are not counted as growth
+        // and the first interval runs compiled code
+        Instant warmedUp = Instant.now()
+                .plus(SAMPLE_INTERVAL);
+        do {
+            for (String page : corpus) {
+                for (CopyDown converter : converters) {
+                    converter.convert(page);
+                }
+            }
+        } while (Instant.now()
+                .isBefore(warmedUp));
+
+        long[] latencies = new long[LATENCY_BUCKETS];
+        List<Double> windows = new ArrayList<>();
+        MemoryPoolMXBean oldGen = findOldGen();
+        List<Long> oldGenSamples = new ArrayList<>();
+        oldGenSamples.add(oldGenUsedAfterGc(oldGen));
+
+        long documents = 0;
+        long inputChars = 0;
+        long outputChars = 0;
+        String failure = null;
+        Instant start = Instant.now();
+        Instant end = start.plus(duration);
+        Instant nextSample = start.plus(SAMPLE_INTERVAL);
+        long elapsedNanos = 0;
+        long windowDocuments = 0;
+        long windowNanos = 0;
+        try {
+            while (Instant.now()
+                    .isBefore(end)) {
+                String page = corpus.get((int) (documents % corpus.size()));
+                CopyDown converter = converters.get((int) (documents / corpus.size() % converters.size()));
+                long before = System.nanoTime();
+                outputChars += converter.convert(page)
+                        .length();
+                long latency = System.nanoTime() - before;
+                elapsedNanos += latency;
+                latencies[(int) Math.min(latency / 1000, LATENCY_BUCKETS - 1)]++;
+                inputChars += page.length();
+                documents++;
+                windowDocuments++;
+                windowNanos += latency;
+                if (Instant.now()
+                        .isAfter(nextSample)) {
+                    windows.add(windowDocuments / (windowNanos / 1e9));
+                    windowDocuments = 0;
+                    windowNanos = 0;
+                    oldGenSamples.add(oldGenUsedAfterGc(oldGen));
+                    nextSample = Instant.now()
+                            .plus(SAMPLE_INTERVAL);
+                }
+            }
+        } catch (OutOfMemoryError e) {
+            failure = "OutOfMemoryError after " + documents + " documents";
+        }
+        oldGenSamples.add(oldGenUsedAfterGc(oldGen));
+
+        double documentsPerSecond = documents / (elapsedNanos / 1e9);
+        Map<String, Long> latencyMicros = new LinkedHashMap<>();
+        latencyMicros.put("p50", percentile(latencies, documents, 0.5));
+        latencyMicros.put("p99", percentile(latencies, documents, 0.99));
+        latencyMicros.put("p999", percentile(latencies, documents, 0.999));
+        long oldGenGrowth = oldGenSamples.get(oldGenSamples.size() - 1) - oldGenSamples.get(0);
+
+        double baselineDocumentsPerSecond;
+        double finalDocumentsPerSecond;
+        if (baseline != null) {
+            baselineDocumentsPerSecond = ((Number) baseline.get("documentsPerSecond")).doubleValue();
+            finalDocumentsPerSecond = documentsPerSecond;
+            long baselineP99 = ((Number) ((Map<?, ?>) baseline.get("latencyMicros")).get("p99")).longValue();
+            if (failure == null && latencyMicros.get("p99") > baselineP99 * (1 + tolerance)) {
+                failure = "99th percentile latency is " + latencyMicros.get("p99") + "us, baseline is " + baselineP99 + "us";
+            }
+        } else {
+            // The first interval against the second half of the run
+            baselineDocumentsPerSecond = windows.isEmpty() ? documentsPerSecond : windows.get(0);
+            List<Double> laterWindows = windows.subList(Math.min(windows.size(), Math.max(1, windows.size() / 2)), windows.size());
+            finalDocumentsPerSecond = laterWindows.isEmpty() ? documentsPerSecond : laterWindows.stream()
+                    .mapToDouble(Double::doubleValue)
+                    .average()
+                    .getAsDouble();
+        }
+        double minDocumentsPerSecond = baselineDocumentsPerSecond * (1 - tolerance);
+        if (failure == null && finalDocumentsPerSecond < minDocumentsPerSecond) {
+            failure = "Converted " + finalDocumentsPerSecond + " documents per second, expected at least " + minDocumentsPerSecond;
+        }
+        if (failure == null && oldGenGrowth > maxOldGenGrowthBytes) {
+            failure = "Old generation grew by " + oldGenGrowth + " bytes, expected at most " + maxOldGenGrowthBytes;
+        }
+
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("version", System.getProperty("copydown.soak.version", "unknown"));
+        report.put("javaVersion", System.getProperty("java.version"));
+        report.put("maxHeapBytes", Runtime.getRuntime()
+                .maxMemory());
+        report.put("durationSeconds", duration.getSeconds());
+        report.put("documents", documents);
+        report.put("inputChars", inputChars);
+        report.put("outputChars", outputChars);
+        report.put("documentsPerSecond", documentsPerSecond);
+        report.put("windowDocumentsPerSecond", windows);
+        report.put("baseline", baselinePath.isEmpty() ? "first interval" : baselinePath);
+        report.put("minDocumentsPerSecond", minDocumentsPerSecond);
+        report.put("latencyMicros", latencyMicros);
+        report.put("oldGenPool", oldGen.getName());
+        report.put("oldGenSamplesBytes", oldGenSamples);
+        report.put("oldGenGrowthBytes", oldGenGrowth);
+        report.put("passed", failure == null);
+        report.put("failure", failure);
+        Files.createDirectories(reportPath.toAbsolutePath()
+                .getParent());
+        Files.write(reportPath, gson.toJson(report)
+                .getBytes(StandardCharsets.UTF_8));
+
+        assertThat(failure, equalTo(null));
+    }
+
+    /**
+     * @return latency in microseconds that the given share of the conversions did not exceed
+     */
+    private static long percentile(long[] latencies, long count, double share) {
+        long rank = (long) Math.ceil(count * share);
+        long seen = 0;
+        for (int micros = 0; micros < latencies.length; micros++) {
+            seen += latencies[micros];
+            if (seen >= rank && seen > 0) {
+                return micros;
+            }
+        }
+        return latencies.length - 1;
+    }
+
+    private static MemoryPoolMXBean findOldGen() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            String name = pool.getName();
+            if (pool.getType() == MemoryType.HEAP && (name.contains("Old") || name.contains("Tenured"))) {
+                return pool;
+            }
+        }
+        throw new IllegalStateException("No old generation memory pool found");
+    }
+
+    private static long oldGenUsedAfterGc(MemoryPoolMXBean oldGen) {
+        System.gc();
+        return oldGen.getUsage()
+                .getUsed();
+    }
+
+    private static List<String> generateCorpus(Random random) {
+        List<String> corpus = new ArrayList<>();
+        for (int i = 0; i < CORPUS_SIZE; i++) {
+            corpus.add(generatePage(random));
+        }
+        return corpus;
+    }
+
+    private static String generatePage(Random random) {
+        StringBuilder page = new StringBuilder();
+        page.append("<header><nav><ul>");
+        for (int i = 0; i < 8; i++) {
+            page.append("<li><a href=\"/section/")
+                    .append(i)
+                    .append("\">Section ")
+                    .append(i)
+                    .append("</a></li>");
+        }
+        page.append("</ul></nav></header><main><article><h1>")
+                .append(sentence(random, 6))
+                .append("</h1>");
+        int sections = 3 + random.nextInt(6);
+        for (int s = 0; s < sections; s++) {
+            page.append("<h2>")
+                    .append(sentence(random, 4))
+                    .append("</h2>\n");
+            int paragraphs = 1 + random.nextInt(4);
+            for (int p = 0; p < paragraphs; p++) {
+                page.append("<p>")
+                        .append(inlineText(random, 30 + random.nextInt(60)))
+                        .append("</p>\n");
+            }
+            switch (random.nextInt(5)) {
+                case 0:
+                    page.append(list(random, 0));
+                    break;
+                case 1:
+                    page.append("<table><thead><tr><th>Name</th><th>Value</th><th>Notes</th></tr></thead><tbody>");
+                    for (int r = 0; r < 5 + random.nextInt(20); r++) {
+                        page.append("<tr><td>")
+                                .append(word(random))
+                                .append("</td><td>")
+                                .append(random.nextInt(10000))
+                                .append("</td><td>")
+                                .append(inlineText(random, 5))
+                                .append("</td></tr>");
+                    }
+                    page.append("</tbody></table>");
+                    break;
+                case 2:
+                    page.append("<pre><code class=\"language-java\">");
+                    for (int l = 0; l < 3 + random.nextInt(10); l++) {
+                        page.append("int value")
+                                .append(l)
+                                .append(" = compute(&quot;")
+                                .append(word(random))
+                                .append("&quot;) * 2;\n");
+                    }
+                    page.append("</code></pre>");
+                    break;
+                case 3:
+                    page.append("<blockquote><p>")
+                            .append(inlineText(random, 20))
+                            .append("</p></blockquote>");
+                    break;
+                default:
+                    page.append("<div><img src=\"/img/")
+                            .append(random.nextInt(1000))
+                            .append(".png\" alt=\"")
+                            .append(word(random))
+                            .append("\"><hr></div>");
+            }
+        }
+        page.append("</article></main><footer><p>Copyright &copy; Example Corp. ")
+                .append("<a href=\"/privacy\">Privacy</a> | <a href=\"/terms\">Terms</a></p></footer>");
+        return page.toString();
+    }
+
+    private static String list(Random random, int depth) {
+        StringBuilder list = new StringBuilder(random.nextBoolean() ? "<ul>" : "<ol>");
+        int items = 2 + random.nextInt(6);
+        for (int i = 0; i < items; i++) {
+            list.append("<li>")
+                    .append(inlineText(random, 3 + random.nextInt(10)));
+            if (depth < 2 && random.nextInt(4) == 0) {
+                list.append(list(random, depth + 1));
+            }
+            list.append("</li>");
+        }
+        list.append(list.charAt(2) == 'u' ? "</ul>" : "</ol>");
+        return list.toString();
+    }
+
+    private static String inlineText(Random random, int words) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < words; i++) {
+            if (i > 0) {
+                text.append(' ');
+            }
+            switch (random.nextInt(20)) {
+                case 0:
+                    text.append("<em>")
+                            .append(word(random))
+                            .append("</em>");
+                    break;
+                case 1:
+                    text.append("<strong>")
+                            .append(word(random))
+                            .append("</strong>");
+                    break;
+                case 2:
+                    text.append("<code>")
+                            .append(word(random))
+                            .append("_")
+                            .append(word(random))
+                            .append("()</code>");
+                    break;
+                case 3:
+                    text.append("<a href=\"https://example.com/")
+                            .append(word(random))
+                            .append("\" title=\"")
+                            .append(word(random))
+                            .append("\">")
+                            .append(word(random))
+                            .append("</a>");
+                    break;
+                case 4:
+                    text.append("*")
+                            .append(word(random))
+                            .append("* [1]");
+                    break;
+                default:
+                    text.append(word(random));
+            }
+        }
+        return text.toString();
+    }
+
+    private static String sentence(Random random, int words) {
+        StringBuilder sentence = new StringBuilder();
+        for (int i = 0; i < words; i++) {
+            if (i > 0) {
+                sentence.append(' ');
+            }
+            sentence.append(word(random));
+        }
+        return sentence.toString();
+    }
+
+    private static final String[] WORDS = {
+            "lorem", "ipsum", "dolor", "sit", "amet", "consectetur", "adipiscing", "elit", "sed", "do",
+            "eiusmod", "tempor", "incididunt", "ut", "labore", "et", "dolore", "magna", "aliqua", "Größe",
+            "naïve", "café", "résumé", "piñata"
+    };
+
+    private static String word(Random random) {
+        return WORDS[random.nextInt(WORDS.length)];
+    }
+}
@@ -0,0 +1,61 @@
+package io.github.furstenheim;
+
+import org.jsoup.nodes.Element;
+import org.jsoup.parser.Parser;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Counts the bytes a conversion allocates on its thread, leaving out what parsing with jsoup
+ * allocates. Pooled conversion state and precompiled patterns brought this from about 86 KB to
+ * 10 KB for a short paragraph, and from 65 to 12 bytes per input character for a real page. The
+ * limits sit between the two, so losing the pooling fails the test.
+ */
+class AllocationTest {
+    private static final int WARM_UP = 500;
+    private static final int RUNS = 200;
+
+    @Test
+    public void shortParagraph() {
+        String html = "<p>Some <em>text</em> with <a href=\"x\">a link</a> and <code>code</code></p>";
+        assertThat(ownAllocation(html), lessThan(30_000L));
+    }
+
+    @Test
+    public void realWebsite() throws IOException {
+        String html = new String(Files.readAllBytes(Paths.get(
+                "src/test/resources/gastronomia_y_cia_1.html")));
+        assertThat(ownAllocation(html), lessThan(25L * html.length()));
+    }
+
+    /**
+     * @return bytes allocated per conversion beyond parsing the input
+     */
+    private static long ownAllocation(String html) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+        CopyDown copyDown = new CopyDown();
+        long conversion = allocation(threads, () -> copyDown.convert(html));
+        long parsing = allocation(threads, () -> Parser.parseFragment(html, new Element("x-copydown"), ""));
+        return conversion - parsing;
+    }
+
+    private static long allocation(com.sun.management.ThreadMXBean threads, Runnable runnable) {
+        for (int i = 0; i < WARM_UP; i++) {
+            runnable.run();
+        }
+        long before = threads.getCurrentThreadAllocatedBytes();
+        for (int i = 0; i < RUNS; i++) {
+            runnable.run();
+        }
+        return (threads.getCurrentThreadAllocatedBytes() - before) / RUNS;
+    }
+}
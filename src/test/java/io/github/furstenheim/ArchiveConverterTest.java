@@ -0,0 +1,163 @@
+package io.github.furstenheim;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+class ArchiveConverterTest {
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void convertsEpubInSpineOrder() throws IOException {
+        Path epub = tempDir.resolve("book.epub");
+        writeZip(epub, Map.of(
+                "mimetype", "application/epub+zip",
+                "META-INF/container.xml", "<?xml version=\"1.0\"?>"
+                        + "<container version=\"1.0\" xmlns=\"urn:oasis:names:tc:opendocument:xmlns:container\">"
+                        + "<rootfiles><rootfile full-path=\"OEBPS/content.opf\" media-type=\"application/oebps-package+xml\"/>"
+                        + "</rootfiles></container>",
+                "OEBPS/content.opf", "<?xml version=\"1.0\"?><opf:package xmlns:opf=\"http://www.idpf.org/2007/opf\">"
+                        + "<opf:manifest>"
+                        + "<opf:item id=\"intro\" href=\"text/z%20intro.xhtml\" media-type=\"application/xhtml+xml\"/>"
+                        + "<opf:item id=\"one\" href=\"text/a-chapter.xhtml\" media-type=\"application/xhtml+xml\"/>"
+                        + "<opf:item id=\"css\" href=\"style.css\" media-type=\"text/css\"/>"
+                        + "</opf:manifest>"
+                        + "<opf:spine><opf:itemref idref=\"intro\"/><opf:itemref idref=\"css\"/><opf:itemref idref=\"one\"/></opf:spine>"
+                        + "</opf:package>",
+                "OEBPS/text/z intro.xhtml", xhtml("Intro", "<h1>Introduction</h1><p>Read&nbsp;me</p>"),
+                "OEBPS/text/a-chapter.xhtml", xhtml("Chapter", "<h2>Chapter <em>one</em></h2>"),
+                "OEBPS/text/unused.xhtml", xhtml("Unused", "<p>Not in the spine</p>"),
+                "OEBPS/style.css", "p { color: red }"));
+
+        List<ConvertedEntry> entries = new ArchiveConverter(new CopyDown()).convert(epub);
+
+        assertThat(entries.stream()
+                .map(ConvertedEntry::getName)
+                .collect(Collectors.toList()), equalTo(List.of("OEBPS/text/z intro.xhtml", "OEBPS/text/a-chapter.xhtml")));
+        assertThat(entries.get(0)
+                .getMarkdown(), equalTo("Introduction\n============\n\nRead me"));
+        assertThat(entries.get(1)
+                .getMarkdown(), equalTo("Chapter _one_\n-------------"));
+    }
+
+    @Test
+    public void parsesXhtmlAsXml() throws IOException {
+        Path zip = tempDir.resolve("xhtml.zip");
+        writeZip(zip, Map.of("chapter.xhtml", "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<html xmlns=\"http://www.w3.org/1999/xhtml\"><head><title/></head>"
+                + "<body><p><a id=\"page-1\"/>One</p><div/><p><a href=\"#top\"/>Two</p></body></html>"));
+
+        String document = new ArchiveConverter(new CopyDown()).convertToDocument(zip);
+
+        // Self-closing elements do not take in the content that follows them
+        assertThat(document, equalTo("One\n\n[](#top)Two"));
+    }
+
+    @Test
+    public void convertsZipInPathOrder() throws IOException {
+        Path zip = tempDir.resolve("docs.zip");
+        writeZip(zip, Map.of(
+                "b/second.html", "<p>Second</p>",
+                "a/first.htm", "<p>First</p>",
+                "c/empty.html", "<!-- nothing -->",
+                "c/third.XHTML", xhtml("Third", "<p>Third</p>"),
+                "notes.txt", "not converted"));
+
+        String document = new ArchiveConverter(new CopyDown()).convertToDocument(zip);
+
+        assertThat(document, equalTo("First\n\nSecond\n\nThird"));
+    }
+
+    @Test
+    public void streamsEntriesInOrder() throws IOException {
+        Path zip = tempDir.resolve("many.zip");
+        Map<String, String> files = new HashMap<>();
+        for (int i = 0; i < 50; i++) {
+            files.put(String.format("page-%03d.html", i), "<p>Page " + i + "</p>" + "<p>text</p>".repeat(i * 10));
+        }
+        writeZip(zip, files);
+
+        List<String> names = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            new ArchiveConverter(new CopyDown(), executor, 4).convert(zip, entry -> names.add(entry.getName()));
+        } finally {
+            executor.shutdown();
+        }
+
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            expected.add(String.format("page-%03d.html", i));
+        }
+        assertThat(names, equalTo(expected));
+    }
+
+    @Test
+    public void limitsEachDocument() throws IOException {
+        CopyDown copyDown = new CopyDown(OptionsBuilder.anOptions()
+                .withMaxInputChars(60)
+                .withMaxDepth(10)
+                .build());
+        Path withinLimit = tempDir.resolve("within.zip");
+        // Twice as many bytes as characters, which are within the limit
+        writeZip(withinLimit, Map.of("a.html", "<p>" + "ü".repeat(40) + "</p>"));
+        Path tooLong = tempDir.resolve("long.zip");
+        writeZip(tooLong, Map.of("a.html", "<p>" + "a".repeat(100) + "</p>"));
+        Path tooDeep = tempDir.resolve("deep.zip");
+        writeZip(tooDeep, Map.of("a.html", "<b>".repeat(12) + "deep"));
+
+        assertThat(new ArchiveConverter(copyDown).convertToDocument(withinLimit), equalTo("ü".repeat(40)));
+        assertThat(abortReason(new ArchiveConverter(copyDown), tooLong),
+                equalTo(ConversionAbortedException.Reason.INPUT_TOO_LARGE));
+        assertThat(abortReason(new ArchiveConverter(copyDown), tooDeep),
+                equalTo(ConversionAbortedException.Reason.TOO_DEEP));
+    }
+
+    private static ConversionAbortedException.Reason abortReason(ArchiveConverter converter, Path archive)
+            throws IOException {
+        try {
+            converter.convert(archive);
+        } catch (ConversionAbortedException e) {
+            return e.getReason();
+        }
+        return null;
+    }
+
+    private static String xhtml(String title, String body) {
+        return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<html xmlns=\"http://www.w3.org/1999/xhtml\">"
+                + "<head><title>" + title + "</title><style>p { margin: 0 }</style></head>"
+                + "<body>" + body + "</body></html>";
+    }
+
+    private static void writeZip(Path path, Map<String, String> files) throws IOException {
+        URI uri = URI.create("jar:" + path.toUri());
+        try (FileSystem zip = FileSystems.newFileSystem(uri, Map.of("create", "true"))) {
+            for (Map.Entry<String, String> file : files.entrySet()) {
+                Path entry = zip.getPath(file.getKey());
+                if (entry.getParent() != null) {
+                    Files.createDirectories(entry.getParent());
+                }
+                Files.write(entry, file.getValue()
+                        .getBytes(StandardCharsets.UTF_8));
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package io.github.furstenheim;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.function.IntFunction;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+/**
+ * Converts generated adversarial inputs at size N and 4N and checks that the time grows roughly
+ * linearly. A linear conversion takes about 4 times as long, a quadratic one 16 times.
+ */
+class ComplexityScalingTest {
+    private static final double MAX_GROWTH = 8;
+    private static final int RUNS = 5;
+    // A super-linear path fails every attempt, a noisy machine only some of them
+    private static final int ATTEMPTS = 3;
+    // Conversion recurses once per nesting level, deep inputs need more than the default stack
+    private static final long STACK_SIZE = 64L * 1024 * 1024;
+
+    // Markdown is built bottom-up, so every level copies the output of its subtree. Wrappers that
+    // add no markdown keep that output constant and measure the work done per level.
+    @Test
+    public void deepNesting() {
+        assertNearLinear(n -> "<div><span>".repeat(n) + " level " + "</span></div>".repeat(n), 250);
+    }
+
+    @Test
+    public void deepInlineNesting() {
+        assertNearLinear(n -> "<span>".repeat(n) + " text <i>x</i> " + "</span>".repeat(n), 250);
+    }
+
+    @Test
+    public void wideSiblingList() {
+        assertNearLinear(n -> "<p>" + "<b>word</b> <i>other</i>\n".repeat(n) + "</p>", 2500);
+    }
+
+    @Test
+    public void longOrderedList() {
+        assertNearLinear(n -> "<ol start=\"3\">\n" + "  <li>item <em>text</em></li>\n".repeat(n) + "</ol>", 2500);
+    }
+
+    @Test
+    public void longListOfNestedLists() {
+        assertNearLinear(n -> "<ol start=\"2\">\n" + "  <li>item <ul><li>one</li><li>two</li></ul></li>\n".repeat(n) + "</ol>", 1000);
+    }
+
+    @Test
+    public void longBacktickRuns() {
+        assertNearLinear(n -> "<p><code>" + "`".repeat(n) + " a ` b `` c ".repeat(n / 10) + "</code></p>", 10000);
+    }
+
+    @Test
+    public void hugeTable() {
+        assertNearLinear(n -> "<table><thead><tr><th>Name</th><th>Value</th></tr></thead><tbody>"
+                + "<tr><td>some <b>name</b></td><td>12345</td></tr>\n".repeat(n) + "</tbody></table>", 500);
+    }
+
+    @Test
+    public void textFullOfEscapes() {
+        assertNearLinear(n -> "<p>" + "*a* _b_ [c] `d` \\ # - + 1. ~~~ > ".repeat(n) + "</p>", 2500);
+    }
+
+    private static void assertNearLinear(IntFunction<String> generator, int n) {
+        CopyDown copyDown = new CopyDown();
+        String small = generator.apply(n);
+        String large = generator.apply(4 * n);
+        double[] growth = {Double.MAX_VALUE};
+        RuntimeException[] failure = new RuntimeException[1];
+        Thread measurement = new Thread(null, () -> {
+            try {
+                // Warm up so that the JIT does not make the first size look slower
+                for (int i = 0; i < RUNS; i++) {
+                    copyDown.convert(small);
+                    copyDown.convert(large);
+                }
+                for (int i = 0; i < ATTEMPTS && growth[0] > MAX_GROWTH; i++) {
+                    growth[0] = Math.min(growth[0], (double) bestTime(copyDown, large) / bestTime(copyDown, small));
+                }
+            } catch (RuntimeException e) {
+                failure[0] = e;
+            }
+        }, "complexity-scaling", STACK_SIZE);
+        measurement.start();
+        try {
+            measurement.join();
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        assertThat(growth[0], lessThanOrEqualTo(MAX_GROWTH));
+    }
+
+    private static long bestTime(CopyDown copyDown, String html) {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < RUNS; i++) {
+            long start = System.nanoTime();
+            copyDown.convert(html);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+}
@@ -0,0 +1,165 @@
+package io.github.furstenheim;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThan;
+
+class ConversionCacheTest {
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void hitsAfterReopening() throws IOException {
+        CopyDown copyDown = new CopyDown();
+        try (ConversionCache cache = ConversionCache.open(tempDir)) {
+            assertThat(cache.convert(copyDown, "<h2>Title</h2><p>Some <em>text</em></p>"),
+                    equalTo("Title\n-----\n\nSome _text_"));
+            assertThat(cache.misses(), equalTo(1L));
+        }
+        try (ConversionCache cache = ConversionCache.open(tempDir)) {
+            assertThat(cache.convert(copyDown, "<h2>Title</h2><p>Some <em>text</em></p>"),
+                    equalTo("Title\n-----\n\nSome _text_"));
+            assertThat(cache.hits(), equalTo(1L));
+            assertThat(cache.misses(), equalTo(0L));
+        }
+    }
+
+    @Test
+    public void replacesEntriesThatDoNotReadBack() throws IOException {
+        CopyDown copyDown = new CopyDown();
+        try (ConversionCache cache = ConversionCache.open(tempDir)) {
+            cache.convert(copyDown, "<p>Lost</p>");
+        }
+        // As if the record had failed to be written after it was indexed
+        List<Path> segments;
+        try (Stream<Path> files = Files.list(tempDir)) {
+            segments = files.filter(file -> file.getFileName()
+                            .toString()
+                            .startsWith("segment-"))
+                    .collect(Collectors.toList());
+        }
+        for (Path segment : segments) {
+            Files.write(segment, new byte[0]);
+        }
+        try (ConversionCache cache = ConversionCache.open(tempDir)) {
+            assertThat(cache.convert(copyDown, "<p>Lost</p>"), equalTo("Lost"));
+            assertThat(cache.convert(copyDown, "<p>Lost</p>"), equalTo("Lost"));
+            assertThat(cache.misses(), equalTo(1L));
+            assertThat(cache.hits(), equalTo(1L));
+        }
+    }
+
+    @Test
+    public void keysIncludeOptions() throws IOException {
+        CopyDown setext = new CopyDown();
+        CopyDown atx = new CopyDown(OptionsBuilder.anOptions()
+                .withHeadingStyle(HeadingStyle.ATX)
+                .build());
+        try (ConversionCache cache = ConversionCache.open(tempDir)) {
+            assertThat(cache.convert(setext, "<h1>Title</h1>"), equalTo("Title\n====="));
+            assertThat(cache.convert(atx, "<h1>Title</h1>"), equalTo("# Title"));
+            assertThat(cache.convert(setext, "<h1>Title</h1>"), equalTo("Title\n====="));
+            assertThat(cache.hits(), equalTo(1L));
+            assertThat(cache.misses(), equalTo(2L));
+        }
+    }
+
+    @Test
+    public void directoryIsUsedByOneCache() throws IOException {
+        try (ConversionCache cache = ConversionCache.open(tempDir)) {
+            assertThat(cache.isEnabled(), equalTo(true));
+            try {
+                ConversionCache.open(tempDir);
+                throw new AssertionError("Opened a cache that is in use");
+            } catch (IOException e) {
+                assertThat(e.getMessage(), equalTo("Conversion cache " + tempDir + " is in use"));
+            }
+        }
+    }
+
+    @Test
+    public void convertsConcurrently() throws Exception {
+        CopyDown copyDown = new CopyDown();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try (ConversionCache cache = ConversionCache.open(tempDir, ConversionCache.DEFAULT_MAX_BYTES, 4096)) {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int thread = 0; thread < 8; thread++) {
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < 200; i++) {
+                        assertThat(cache.convert(copyDown, "<p>Page <b>" + i + "</b></p>"), equalTo("Page **" + i + "**"));
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            // Threads may convert the same page at the same time, but each page is stored once
+            assertThat(cache.hits() + cache.misses(), equalTo(1600L));
+        } catch (ExecutionException e) {
+            throw (Exception) e.getCause();
+        } finally {
+            executor.shutdown();
+        }
+        try (ConversionCache cache = ConversionCache.open(tempDir, ConversionCache.DEFAULT_MAX_BYTES, 4096)) {
+            for (int i = 0; i < 200; i++) {
+                assertThat(cache.convert(copyDown, "<p>Page <b>" + i + "</b></p>"), equalTo("Page **" + i + "**"));
+            }
+            assertThat(cache.hits(), equalTo(200L));
+        }
+    }
+
+    @Test
+    public void compactionDropsUnusedEntries() throws IOException {
+        CopyDown copyDown = new CopyDown();
+        String text = "text ".repeat(100);
+        try (ConversionCache cache = ConversionCache.open(tempDir, 1 << 20, 8192)) {
+            for (int i = 0; i < 100; i++) {
+                cache.convert(copyDown, "<p>Old " + i + " " + text + "</p>");
+            }
+        }
+        long sizeBefore = segmentsSize();
+        // Entries written two openings ago and not used since are dropped
+        try (ConversionCache cache = ConversionCache.open(tempDir, 1 << 20, 8192)) {
+            cache.convert(copyDown, "<p>Old 0 " + text + "</p>");
+        }
+        try (ConversionCache cache = ConversionCache.open(tempDir, 1 << 20, 8192)) {
+            cache.convert(copyDown, "<p>New " + text + "</p>");
+            cache.compact();
+        }
+        assertThat(segmentsSize(), lessThan(sizeBefore / 10));
+        try (ConversionCache cache = ConversionCache.open(tempDir, 1 << 20, 8192)) {
+            assertThat(cache.convert(copyDown, "<p>Old 0 " + text + "</p>"), equalTo("Old 0 " + text.trim()));
+            assertThat(cache.convert(copyDown, "<p>New " + text + "</p>"), equalTo("New " + text.trim()));
+            assertThat(cache.hits(), equalTo(2L));
+            assertThat(cache.convert(copyDown, "<p>Old 1 " + text + "</p>"), equalTo("Old 1 " + text.trim()));
+            assertThat(cache.misses(), equalTo(1L));
+        }
+    }
+
+    private long segmentsSize() throws IOException {
+        try (Stream<Path> files = Files.list(tempDir)) {
+            return files.filter(file -> file.getFileName()
+                            .toString()
+                            .startsWith("segment-"))
+                    .mapToLong(file -> file.toFile()
+                            .length())
+                    .sum();
+        }
+    }
+}
@@ -5,16 +5,39 @@ import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import com.google.gson.reflect.TypeToken;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.Arguments;
 import org.junit.jupiter.params.provider.MethodSource;
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
 
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.StringReader;
 import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.Future;
 import java.util.stream.Stream;
 
 import static org.hamcrest.MatcherAssert.assertThat;
@@ -24,9 +47,55 @@ class CopyDownTest {
     @ParameterizedTest
     @MethodSource("testCases")
     public void mainTest(String name, TestCase testCase) {
+        String markdown = copyDownFor(testCase).convert(testCase.input);
+
+        assertThat(markdown, equalTo(testCase.output));
+
+    }
+
+    @ParameterizedTest
+    @MethodSource("testCases")
+    public void publishTest(String name, TestCase testCase) {
+        CollectingSubscriber subscriber = new CollectingSubscriber();
+        copyDownFor(testCase).publish(testCase.input, Runnable::run)
+                .subscribe(subscriber);
+
+        assertThat(subscriber.completed, equalTo(true));
+        assertThat(String.join("", subscriber.chunks), equalTo(testCase.output));
+    }
+
+    @ParameterizedTest
+    @MethodSource("testCases")
+    public void memoTest(String name, TestCase testCase) {
+        // Every element is memoized, content is stored on the second conversion and reused on the third
+        SubtreeMemo memo = new SubtreeMemo(1 << 20, 1);
+        CopyDown copyDown = copyDownFor(testCase, memo);
+        for (int i = 0; i < 3; i++) {
+            assertThat(copyDown.convert(testCase.input), equalTo(testCase.output));
+        }
+    }
+
+    @ParameterizedTest
+    @MethodSource("testCases")
+    public void blocksTest(String name, TestCase testCase) {
+        MarkdownDocument document = copyDownFor(testCase).convertToBlocks(testCase.input);
+
+        assertThat(document.getMarkdown(), equalTo(testCase.output));
+        for (MarkdownBlock block : document.getBlocks()) {
+            assertThat(document.getMarkdown()
+                    .substring(block.getStart(), block.getEnd()), equalTo(block.getMarkdown()));
+        }
+    }
+
+    private static CopyDown copyDownFor(TestCase testCase) {
+        return copyDownFor(testCase, null);
+    }
+
+    private static CopyDown copyDownFor(TestCase testCase, SubtreeMemo memo) {
         CopyDown copyDown;
         if (testCase.options.isJsonNull()) {
-            copyDown = new CopyDown();
+            copyDown = new CopyDown(OptionsBuilder.anOptions()
+                    .build(), memo);
         } else {
             OptionsBuilder optionsBuilder = OptionsBuilder.anOptions();
             JsonObject options = testCase.options.getAsJsonObject();
@@ -56,15 +125,15 @@ class CopyDownTest {
                     optionsBuilder.withFence(options.get("fence").getAsString());
                 }
             }
+            if (options.has("tableStyle") && options.get("tableStyle").getAsString().equals("compact")) {
+                optionsBuilder.withTableStyle(TableStyle.COMPACT);
+            }
             if (options.has("bulletListMarker")) {
                 optionsBuilder.withBulletListMaker(options.get("bulletListMarker").getAsString());
             }
-            copyDown = new CopyDown(optionsBuilder.build());
+            copyDown = new CopyDown(optionsBuilder.build(), memo);
         }
-        String markdown = copyDown.convert(testCase.input);
-
-        assertThat(markdown, equalTo(testCase.output));
-
+        return copyDown;
     }
 
     public static Stream<Arguments> testCases () throws IOException {
@@ -87,4 +156,418 @@ class CopyDownTest {
                 "src/test/resources/gastronomia_result.md")));
         assertThat(convert + "\n", equalTo(expected));
     }
+
+    @Test
+    public void convertToOutputStream() throws IOException {
+        String html = "<h1>Überschrift ✓</h1><p>" + "Grüße 😀 ".repeat(20) + "</p>";
+        CopyDown copyDown = new CopyDown(OptionsBuilder.anOptions()
+                .withOutputBufferSize(16)
+                .withOutputBufferPoolSize(1)
+                .build());
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        copyDown.convert(html, outputStream);
+
+        assertThat(outputStream.toString(StandardCharsets.UTF_8), equalTo(copyDown.convert(html)));
+    }
+
+    @Test
+    public void convertersShareOutputBuffers() throws IOException {
+        Options options = OptionsBuilder.anOptions()
+                .withOutputBufferSize(24)
+                .withOutputBufferPoolSize(1)
+                .build();
+        new CopyDown(options).convert("<p>Text</p>", new ByteArrayOutputStream());
+        ByteBufferPool pool = ByteBufferPool.shared(24, 1, false);
+        ByteBuffer buffer = pool.acquire();
+        pool.release(buffer);
+        new CopyDown(options).convert("<p>Text</p>", new ByteArrayOutputStream());
+
+        // The second converter took the buffer left by the first one and gave it back
+        assertThat(pool.acquire() == buffer, equalTo(true));
+
+        // Channels take direct buffers from a pool of their own
+        ByteBufferPool directPool = ByteBufferPool.shared(24, 1, true);
+        ByteBuffer directBuffer = directPool.acquire();
+        directPool.release(directBuffer);
+        new CopyDown(options).convert("<p>Text</p>", Channels.newChannel(new ByteArrayOutputStream()));
+        assertThat(directBuffer.isDirect(), equalTo(true));
+        assertThat(directPool.acquire() == directBuffer, equalTo(true));
+    }
+
+    @Test
+    public void referencedLinksAreThreadSafe() throws InterruptedException, ExecutionException {
+        CopyDown copyDown = new CopyDown(OptionsBuilder.anOptions()
+                .withLinkStyle(LinkStyle.REFERENCED)
+                .build());
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                String html = "<p><a href=\"http://example.com/" + i + "\">link " + i + "</a></p>";
+                results.add(executor.submit(() -> copyDown.convert(html)));
+            }
+            for (int i = 0; i < results.size(); i++) {
+                assertThat(results.get(i)
+                        .get(), equalTo("[link " + i + "][1]\n\n[1]: http://example.com/" + i));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void publishOnlyConvertsRequestedBlocks() {
+        CollectingSubscriber subscriber = new CollectingSubscriber();
+        subscriber.requestMore = false;
+        new CopyDown().publish("<h1>Title</h1><p>First</p><p>Second</p>", Runnable::run)
+                .subscribe(subscriber);
+
+        assertThat(subscriber.chunks, equalTo(List.of("Title\n=====")));
+        subscriber.subscription.request(Long.MAX_VALUE);
+        assertThat(subscriber.chunks, equalTo(List.of("Title\n=====", "\n\nFirst", "\n\nSecond")));
+        assertThat(subscriber.completed, equalTo(true));
+    }
+
+    @Test
+    public void convertW3cDocument() throws ParserConfigurationException, IOException, SAXException {
+        String body = "<h2>Chapter <em>one</em></h2>\n  <p>Some   <a href=\"a.html\" title=\"A\">link</a><br/>next</p>"
+                + "<!-- note --><pre><code class=\"language-java\">int a;\n</code></pre><ul><li>x</li><li>y</li></ul>";
+        String xhtml = "<html xmlns=\"http://www.w3.org/1999/xhtml\"><body>" + body + "</body></html>";
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        Document document = factory.newDocumentBuilder()
+                .parse(new InputSource(new StringReader(xhtml)));
+
+        CopyDown copyDown = new CopyDown();
+        assertThat(copyDown.convert(document.getDocumentElement()
+                .getElementsByTagNameNS("http://www.w3.org/1999/xhtml", "body")
+                .item(0)), equalTo(copyDown.convert(body)));
+    }
+
+    @Test
+    public void tableCellsKeepTheirAncestry() throws ParserConfigurationException, IOException, SAXException {
+        // An HTML parser moves the table out of the code element, an XML parser keeps it inside
+        Document document = DocumentBuilderFactory.newInstance()
+                .newDocumentBuilder()
+                .parse(new InputSource(new StringReader(
+                        "<p><code><table><tr><td>a_b</td></tr><tr><td>c*d</td></tr></table></code></p>")));
+        String expected = "`| a_b |\n| --- |\n| c*d |\n`";
+
+        assertThat(new CopyDown().convert(document), equalTo(expected));
+        assertThat(new CopyDown(OptionsBuilder.anOptions()
+                .withMaxOutputChars(40)
+                .build()).convert(document), equalTo(expected));
+    }
+
+    @Test
+    public void plainTextMatchesParsedText() {
+        // The comment forces a parse and is dropped, so both inputs describe the same text
+        List<String> inputs = List.of("", "   ", "plain words", "  - item  ", "1. first\n2. second", "# heading",
+                "=== under", "> quote", "+ plus", "~~~ fence", "*stars* _under_ `tick` [link] back\\slash",
+                "tabs\t\tand\r\nnewlines\n", "\u00a0- after nbsp", "zero\u200bwidth and soft\u00adhyphen",
+                "trailing nbsp\u00a0", "form\ffeed");
+        CopyDown copyDown = new CopyDown();
+        for (String input : inputs) {
+            assertThat(input, copyDown.convert(input), equalTo(copyDown.convert(input + "<!---->")));
+        }
+    }
+
+    @Test
+    public void previewClosesMarkupAndKeepsReferences() {
+        CopyDown copyDown = new CopyDown(OptionsBuilder.anOptions()
+                .withMaxOutputChars(60)
+                .withLinkStyle(LinkStyle.REFERENCED)
+                .build());
+        String html = "<h2>Title</h2><p>See <a href=\"a.html\">the first link</a> and <em>the <a href=\"b.html\">second"
+                + " link</a> in the text</em></p><p>Never converted</p>";
+
+        assertThat(copyDown.convert(html), equalTo("Title\n-----\n\nSee [the first link][1] and _the [second link][2]_\n\n"
+                + "[1]: a.html\n[2]: b.html"));
+    }
+
+    @Test
+    public void previewCutsCodeBlocksAndTables() {
+        CopyDown copyDown = new CopyDown(OptionsBuilder.anOptions()
+                .withMaxOutputChars(30)
+                .build());
+
+        assertThat(copyDown.convert("<p>Intro</p><pre><code>line one\nline two\nline three\nline four</code></pre>"),
+                equalTo("Intro\n\n    line one\n    line two"));
+        assertThat(copyDown.convert("<table><tr><th>a</th><th>b</th></tr><tr><td>1</td><td>2</td></tr>"
+                + "<tr><td>3</td><td>4</td></tr><tr><td>5</td><td>6</td></tr></table>"),
+                equalTo("| a   | b   |\n| --- | --- |\n| 1   | 2   |\n| 3   | 4   |"));
+        // Whitespace of the cells lies beyond the text that a short preview collapses up front
+        CopyDown shortPreview = new CopyDown(OptionsBuilder.anOptions()
+                .withMaxOutputChars(1)
+                .build());
+        assertThat(shortPreview.convert("<table><caption> cap </caption><tr><td>\n b\n<i>y</i> </td><td>  a </td></tr></table>"),
+                equalTo("cap\n\n| b   |     |\n| --- | --- |"));
+    }
+
+    @Test
+    public void previewIsBoundedByTheBudget() throws IOException {
+        String html = new String(Files.readAllBytes(Paths.get("src/test/resources/gastronomia_y_cia_1.html")));
+        for (int maxOutputChars : new int[] { 500, 2000 }) {
+            String preview = new CopyDown(OptionsBuilder.anOptions()
+                    .withMaxOutputChars(maxOutputChars)
+                    .build()).convert(html);
+            // Words are not split and the markup of open elements is closed, so the length is not exact
+            assertThat(String.valueOf(preview.length()), preview.length() > maxOutputChars / 2
+                    && preview.length() < maxOutputChars + 100, equalTo(true));
+        }
+    }
+
+    @Test
+    public void convertsToBlocksWithOffsets() {
+        CopyDown copyDown = new CopyDown(OptionsBuilder.anOptions()
+                .withLinkStyle(LinkStyle.REFERENCED)
+                .build());
+        String html = "<h1>Title</h1><p>Intro with a <a href=\"a.html\">link</a></p><div>Loose text</div>"
+                + "<h2>Part</h2><ul><li>a<ul><li>b</li></ul></li></ul><pre><code>x = 1</code></pre>"
+                + "<blockquote><h3>Quoted</h3></blockquote><h2>Other</h2><table><tr><th>h</th></tr></table>";
+
+        MarkdownDocument document = copyDown.convertToBlocks(html);
+
+        assertThat(document.getMarkdown(), equalTo(copyDown.convert(html)));
+        List<String> blocks = new ArrayList<>();
+        for (MarkdownBlock block : document.getBlocks()) {
+            assertThat(document.getMarkdown()
+                    .substring(block.getStart(), block.getEnd()), equalTo(block.getMarkdown()));
+            blocks.add(block.getType() + " " + block.getHeadingLevel() + " " + block.getHeadingPath());
+        }
+        assertThat(blocks, equalTo(List.of("HEADING 1 [Title]", "PARAGRAPH 0 [Title]", "PARAGRAPH 0 [Title]",
+                "HEADING 2 [Title, Part]", "LIST 0 [Title, Part]", "CODE_BLOCK 0 [Title, Part]",
+                "BLOCKQUOTE 0 [Title, Part]", "HEADING 2 [Title, Other]", "TABLE 0 [Title, Other]",
+                "LINK_REFERENCES 0 [Title, Other]")));
+        assertThat(document.getBlocks()
+                .get(4)
+                .getMarkdown(), equalTo("*   a\n    *   b"));
+    }
+
+    @Test
+    public void locatesDuplicateBlocks() {
+        String html = "<div>Read more</div><p>Read more</p><table><tr><th>a</th></tr><tr><td>b</td></tr></table>"
+                + "<p><b>Read more</b></p><div><p>Read more</p></div><table><tr><th>a</th></tr><tr><td>b</td></tr></table>";
+
+        MarkdownDocument document = new CopyDown().convertToBlocks(html);
+
+        List<String> blocks = new ArrayList<>();
+        for (MarkdownBlock block : document.getBlocks()) {
+            blocks.add(block.getType() + " " + block.getStart() + "-" + block.getEnd());
+        }
+        // The loose text of the div is the first "Read more", the paragraph after it the second
+        assertThat(document.getMarkdown(), equalTo("Read more\n\nRead more\n\n| a   |\n| --- |\n| b   |\n\n"
+                + "**Read more**\n\nRead more\n\n| a   |\n| --- |\n| b   |"));
+        assertThat(blocks, equalTo(List.of("PARAGRAPH 0-9", "PARAGRAPH 11-20", "TABLE 22-45", "PARAGRAPH 47-60",
+                "PARAGRAPH 62-71", "TABLE 73-96")));
+
+        // Loose text that starts like the paragraph after it
+        document = new CopyDown().convertToBlocks("<div>Read more here</div><p>Read more</p>");
+        blocks.clear();
+        for (MarkdownBlock block : document.getBlocks()) {
+            blocks.add(block.getType() + " " + block.getStart() + "-" + block.getEnd());
+        }
+        assertThat(blocks, equalTo(List.of("PARAGRAPH 0-14", "PARAGRAPH 16-25")));
+    }
+
+    @Test
+    public void convertsEachSelectedElement() {
+        CopyDown copyDown = new CopyDown(OptionsBuilder.anOptions()
+                .withLinkStyle(LinkStyle.REFERENCED)
+                .build());
+        String first = "<div class=\"post\"><h2>First</h2><p>See <a href=\"a.html\">this</a>   and\n <em>that</em></p></div>";
+        String second = "<div class=\"post\"><p>Quote:</p><blockquote><div class=\"post\"><p>Inner <a href=\"b.html\">link</a></p></div></blockquote></div>";
+        String html = "<header>Forum</header>" + first + "<pre><code><div class=\"post\">*a*</div></code></pre>" + second;
+
+        List<String> posts = copyDown.convertEach(html, "div.post");
+
+        assertThat(posts, equalTo(List.of(copyDown.convert(first), "*a*", copyDown.convert(second),
+                "Inner [link][1]\n\n[1]: b.html")));
+        assertThat(copyDown.convertEach(html, "table"), equalTo(List.of()));
+        CopyDown preview = new CopyDown(OptionsBuilder.anOptions()
+                .withMaxOutputChars(8)
+                .build());
+        assertThat(preview.convertEach("<p>first post</p><p>second post</p>", "p"), equalTo(List.of("first", "second")));
+        // Whitespace at the ends of inline elements is dropped, like at the ends of a document
+        assertThat(copyDown.convertEach("<p>See<b> x </b>now and <em>this </em>too</p>", "b, em"),
+                equalTo(List.of("**x**", "_this_")));
+    }
+
+    @Test
+    public void sharesRulesBetweenEqualOptions() {
+        Options fenced = OptionsBuilder.anOptions()
+                .withCodeBlockStyle(CodeBlockStyle.FENCED)
+                .build();
+        Options limited = OptionsBuilder.anOptions()
+                .withCodeBlockStyle(CodeBlockStyle.FENCED)
+                .withMaxNodes(1_000)
+                .build();
+
+        assertThat(fenced, equalTo(OptionsBuilder.anOptions()
+                .withCodeBlockStyle(CodeBlockStyle.FENCED)
+                .build()));
+        assertThat(fenced.hashCode(), equalTo(OptionsBuilder.anOptions()
+                .withCodeBlockStyle(CodeBlockStyle.FENCED)
+                .build()
+                .hashCode()));
+        assertThat(fenced.equals(limited), equalTo(false));
+        assertThat(CopyDown.Rules.forOptions(fenced) == CopyDown.Rules.forOptions(limited), equalTo(true));
+        assertThat(CopyDown.Rules.forOptions(fenced) == CopyDown.Rules.forOptions(OptionsBuilder.anOptions()
+                .build()), equalTo(false));
+        assertThat(new CopyDown(limited).convert("<pre><code>x = 1</code></pre><a href=\"a.html\">a</a>"),
+                equalTo("```\nx = 1\n```\n\n[a](a.html)"));
+    }
+
+    @Test
+    public void abortsInputOverTheLimits() {
+        CopyDown copyDown = new CopyDown(OptionsBuilder.anOptions()
+                .withMaxInputChars(10_000)
+                .withMaxNodes(1_000)
+                .withMaxDepth(100)
+                .build());
+
+        assertThat(abortReason(() -> copyDown.convert("a".repeat(10_001))),
+                equalTo(ConversionAbortedException.Reason.INPUT_TOO_LARGE));
+        assertThat(abortReason(() -> copyDown.convert("<p>a</p>".repeat(501))),
+                equalTo(ConversionAbortedException.Reason.TOO_MANY_NODES));
+        assertThat(abortReason(() -> copyDown.convert("<div>".repeat(100) + "a")),
+                equalTo(ConversionAbortedException.Reason.TOO_DEEP));
+        // Table cells are visited once per pass over the table, but count once
+        String table = "<table>" + "<tr><td>a</td><td>b</td></tr>".repeat(150) + "</table>";
+        assertThat(copyDown.convert(table), equalTo(new CopyDown().convert(table)));
+        assertThat(copyDown.convert("<div>".repeat(99) + "a"), equalTo("a"));
+
+        // Whitespace inside pre is kept, but its nodes count all the same
+        CopyDown preLimits = new CopyDown(OptionsBuilder.anOptions()
+                .withMaxDepth(100)
+                .withMaxNodes(1000)
+                .build());
+        assertThat(abortReason(() -> preLimits.convert("<pre>" + "<b>x</b>".repeat(50000))),
+                equalTo(ConversionAbortedException.Reason.TOO_MANY_NODES));
+        assertThat(abortReason(() -> preLimits.convert("<pre>" + "<i>".repeat(20000) + "x")),
+                equalTo(ConversionAbortedException.Reason.TOO_DEEP));
+        String pre = "<pre>" + "<i>".repeat(98) + "x";
+        assertThat(preLimits.convert(pre), equalTo(new CopyDown().convert(pre)));
+    }
+
+    @Test
+    public void abortsCancelledAndSlowConversions() {
+        String html = "<p>Some <em>text</em></p>".repeat(10_000);
+        CancellationToken cancellationToken = new CancellationToken();
+        cancellationToken.cancel();
+        assertThat(abortReason(() -> new CopyDown().convert(html, cancellationToken)),
+                equalTo(ConversionAbortedException.Reason.CANCELLED));
+
+        CopyDown copyDown = new CopyDown(OptionsBuilder.anOptions()
+                .withTimeout(Duration.ofNanos(1))
+                .build());
+        assertThat(abortReason(() -> copyDown.convert(html)), equalTo(ConversionAbortedException.Reason.TIMED_OUT));
+        // The pooled context of the thread is released
+        assertThat(new CopyDown().convert("<p>Some <em>text</em></p>", new CancellationToken()),
+                equalTo("Some _text_"));
+    }
+
+    @Test
+    public void limitsDepthOfW3cDocuments() throws ParserConfigurationException {
+        Document document = DocumentBuilderFactory.newInstance()
+                .newDocumentBuilder()
+                .newDocument();
+        org.w3c.dom.Node parent = document;
+        for (int i = 0; i < 100_000; i++) {
+            parent = parent.appendChild(document.createElement("div"));
+        }
+        parent.appendChild(document.createTextNode("a"));
+        CopyDown copyDown = new CopyDown(OptionsBuilder.anOptions()
+                .withMaxDepth(100)
+                .build());
+
+        assertThat(abortReason(() -> copyDown.convert(document)), equalTo(ConversionAbortedException.Reason.TOO_DEEP));
+        assertThat(copyDown.convert(document.getDocumentElement()
+                .getElementsByTagName("div")
+                .item(100_000 - 99)), equalTo("a"));
+    }
+
+    private static ConversionAbortedException.Reason abortReason(Runnable conversion) {
+        try {
+            conversion.run();
+        } catch (ConversionAbortedException e) {
+            return e.getReason();
+        }
+        return null;
+    }
+
+    @Test
+    public void emitsFlightRecorderEvents() throws IOException {
+        Path recordingFile = Files.createTempFile("copydown", ".jfr");
+        String html = "<p>Some <em>text</em></p><table><tr><th>a</th></tr><tr><td>b</td></tr></table>";
+        String markdown;
+        try (Recording recording = new Recording()) {
+            recording.enable("io.github.furstenheim.Conversion");
+            recording.enable("io.github.furstenheim.ConversionPhase");
+            recording.start();
+            markdown = new CopyDown().convert(html);
+            CollectingSubscriber subscriber = new CollectingSubscriber();
+            new CopyDown().publish(html, Runnable::run)
+                    .subscribe(subscriber);
+            recording.stop();
+            recording.dump(recordingFile);
+        }
+        List<RecordedEvent> events = RecordingFile.readAllEvents(recordingFile);
+        Files.delete(recordingFile);
+
+        List<RecordedEvent> conversions = events.stream()
+                .filter(event -> event.getEventType()
+                        .getName()
+                        .equals("io.github.furstenheim.Conversion"))
+                .collect(Collectors.toList());
+        // One for the conversion and one for the published conversion
+        assertThat(conversions.size(), equalTo(2));
+        for (RecordedEvent conversion : conversions) {
+            assertThat(conversion.getLong("inputLength"), equalTo((long) html.length()));
+            assertThat(conversion.getLong("outputLength"), equalTo((long) markdown.length()));
+            assertThat(conversion.getLong("nodeCount") > 0, equalTo(true));
+            assertThat(conversion.getEventType()
+                    .getField("outputLength")
+                    .getContentType(), equalTo(null));
+        }
+
+        Set<String> phases = events.stream()
+                .filter(event -> event.getEventType()
+                        .getName()
+                        .equals("io.github.furstenheim.ConversionPhase"))
+                .map(event -> event.getString("phase"))
+                .collect(Collectors.toSet());
+        assertThat(phases, equalTo(Set.of("parse", "whitespace collapse", "traversal", "table", "post process")));
+    }
+
+    private static class CollectingSubscriber implements Flow.Subscriber<String> {
+        private final List<String> chunks = new ArrayList<>();
+        private Flow.Subscription subscription;
+        private boolean requestMore = true;
+        private boolean completed = false;
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(1);
+        }
+
+        @Override
+        public void onNext(String item) {
+            chunks.add(item);
+            if (requestMore) {
+                subscription.request(1);
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            throw new AssertionError(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            completed = true;
+        }
+    }
 }
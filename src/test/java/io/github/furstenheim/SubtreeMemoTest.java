@@ -0,0 +1,95 @@
+package io.github.furstenheim;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+
+class SubtreeMemoTest {
+    private static final String FOOTER = "<footer><ul><li><a href=\"/about\">About</a></li>"
+            + "<li><a href=\"/contact\">Contact</a></li><li>Code <code>a*b</code></li></ul>"
+            + "<p>Built with <em>care</em></p></footer>";
+
+    @Test
+    public void reusesSharedSubtrees() {
+        SubtreeMemo memo = new SubtreeMemo(1 << 20, 8);
+        CopyDown memoized = new CopyDown(OptionsBuilder.anOptions()
+                .build(), memo);
+        CopyDown plain = new CopyDown();
+        for (int page = 0; page < 10; page++) {
+            String html = "<h1>Page " + page + "</h1><p>Text of page *" + page + "*</p>" + FOOTER;
+            assertThat(memoized.convert(html), equalTo(plain.convert(html)));
+        }
+        // The footer is stored the second time it is seen
+        assertThat(memo.hits(), equalTo(8L));
+        assertThat(memo.misses(), equalTo(4L));
+    }
+
+    @Test
+    public void keysIncludeContext() {
+        SubtreeMemo memo = new SubtreeMemo(1 << 20, 4);
+        CopyDown copyDown = new CopyDown(OptionsBuilder.anOptions()
+                .build(), memo);
+        String list = "<ul><li>One *</li><li>Two</li><li>Three</li></ul>";
+        String nested = "<ol start=\"3\"><li>First" + list + "</li><li>Second" + list + "</li></ol>";
+        String code = "<pre><code>" + list + "</code></pre>";
+        CopyDown plain = new CopyDown();
+        for (int i = 0; i < 3; i++) {
+            for (String html : new String[]{list, nested, code}) {
+                assertThat(copyDown.convert(html), equalTo(plain.convert(html)));
+            }
+        }
+        assertThat(memo.hits(), greaterThan(0L));
+        CopyDown atx = new CopyDown(OptionsBuilder.anOptions()
+                .withHeadingStyle(HeadingStyle.ATX)
+                .build(), memo);
+        String section = "<section><h1>Title</h1>" + list + "</section>";
+        for (int i = 0; i < 3; i++) {
+            assertThat(copyDown.convert(section), equalTo(plain.convert(section)));
+            assertThat(atx.convert(section), equalTo("# Title\n\n*   One \\*\n*   Two\n*   Three"));
+        }
+    }
+
+    @Test
+    public void replaysReferences() {
+        SubtreeMemo memo = new SubtreeMemo(1 << 20, 4);
+        Options options = OptionsBuilder.anOptions()
+                .withLinkStyle(LinkStyle.REFERENCED)
+                .withLinkReferenceStyle(LinkReferenceStyle.SHORTCUT)
+                .build();
+        CopyDown copyDown = new CopyDown(options, memo);
+        String html = "<p>Read <a href=\"/a\">this</a></p><div><p>And <a href=\"/b\">that</a> or <a href=\"/c\">more</a></p></div>";
+        for (int i = 0; i < 3; i++) {
+            assertThat(copyDown.convert(html), equalTo("Read [this]\n\nAnd [that] or [more]\n\n[this]: /a\n[that]: /b\n[more]: /c"));
+        }
+        assertThat(memo.hits(), greaterThan(0L));
+
+        SubtreeMemo numberedMemo = new SubtreeMemo(1 << 20, 4);
+        CopyDown numbered = new CopyDown(OptionsBuilder.anOptions()
+                .withLinkStyle(LinkStyle.REFERENCED)
+                .build(), numberedMemo);
+        for (int i = 0; i < 3; i++) {
+            assertThat(numbered.convert(html), equalTo("Read [this][1]\n\nAnd [that][2] or [more][3]\n\n[1]: /a\n[2]: /b\n[3]: /c"));
+        }
+        assertThat(numberedMemo.hits() + numberedMemo.misses(), equalTo(0L));
+    }
+
+    @Test
+    public void staysWithinItsSize() throws IOException {
+        String html = new String(Files.readAllBytes(Paths.get(
+                "src/test/resources/gastronomia_y_cia_1.html")));
+        String expected = new CopyDown().convert(html);
+        SubtreeMemo memo = new SubtreeMemo(2000, 4);
+        CopyDown copyDown = new CopyDown(OptionsBuilder.anOptions()
+                .build(), memo);
+        for (int i = 0; i < 3; i++) {
+            assertThat(copyDown.convert(html), equalTo(expected));
+            assertThat(memo.storedChars() <= 2000, equalTo(true));
+        }
+    }
+}